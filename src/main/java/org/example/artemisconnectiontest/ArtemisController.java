@@ -1,25 +1,108 @@
 package org.example.artemisconnectiontest;
 
+import org.example.artemisconnectiontest.vtbartemis.adapter.VtbArtemisLoadGenerator;
 import org.example.artemisconnectiontest.vtbartemis.adapter.VtbArtemisSender;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 @RestController
 @RequestMapping(path = "/")
 public class ArtemisController {
     private final VtbArtemisSender vtbArtemisSender;
+    private final VtbArtemisLoadGenerator loadGenerator;
 
-    public ArtemisController(VtbArtemisSender vtbArtemisSender) {
+    public ArtemisController(VtbArtemisSender vtbArtemisSender, VtbArtemisLoadGenerator loadGenerator) {
         this.vtbArtemisSender = vtbArtemisSender;
+        this.loadGenerator = loadGenerator;
     }
 
+    /**
+     * Результат запроса, время в миллисекундах от начала отправки, null - события не было
+     * @param correlationID корреляционный идентификатор
+     * @param response текст ответа, null - ответа нет
+     * @param error ошибка отправки или ожидания ответа, null - ошибки нет
+     * @param sent подтверждение отправки брокером
+     * @param replied получение ответа или ошибки
+     */
+    public record Reply (String correlationID, String response, String error, Double sent, Double replied) {}
+
+    /**
+     * Запросы отправляются асинхронно, нить Tomcat освобождается сразу, ответ HTTP формируется,
+     * когда на все запросы получены ответы или истекли таймауты
+     * @param count число запросов
+     */
     @GetMapping
-    public void artemis() throws JMSException {
-        vtbArtemisSender.send();
+    public DeferredResult<List<Reply>> artemis(@RequestParam(defaultValue = "5") int count) {
+        DeferredResult<List<Reply>> result = new DeferredResult<>(vtbArtemisSender.getTimeout() + 10000);
+
+        vtbArtemisSender.sendAsync(count).whenComplete((requests, e) -> {
+            if (e != null)
+                result.setErrorResult(e instanceof CompletionException ? e.getCause() : e);
+            else
+                result.setResult(requests.stream().map(ArtemisController::reply).toList());
+        });
+        return result;
+    }
+
+    /**
+     * Нагрузочный прогон, ответ HTTP - распределение задержек отправки, доставки и ответа
+     * @param rate запросов в секунду
+     * @param concurrency наибольшее число запросов, ожидающих ответа
+     * @param size размер запроса, символов
+     * @param duration длительность, с
+     * @param destination очередь или адрес запросов, по умолчанию очередь запросов сервиса
+     */
+    @GetMapping(path = "load", produces = MediaType.TEXT_PLAIN_VALUE)
+    public DeferredResult<String> load(@RequestParam(defaultValue = "10") double rate,
+                                       @RequestParam(defaultValue = "16") int concurrency,
+                                       @RequestParam(defaultValue = "1024") int size,
+                                       @RequestParam(defaultValue = "60") long duration,
+                                       @RequestParam(required = false) String destination) {
+        DeferredResult<String> result = new DeferredResult<>(duration * 1000 + vtbArtemisSender.getTimeout() + 10000);
+
+        if (rate <= 0 || rate > VtbArtemisLoadGenerator.MAX_RATE || concurrency <= 0 || size < 0 || duration <= 0) {
+            result.setErrorResult(new IllegalArgumentException("rate, concurrency and duration must be positive, rate at most "
+                    + VtbArtemisLoadGenerator.MAX_RATE));
+            return result;
+        }
+        loadGenerator.run(rate, concurrency, size, duration, destination).whenComplete((report, e) -> {
+            if (e != null)
+                result.setErrorResult(e);
+            else
+                result.setResult(report);
+        });
+        return result;
     }
 
+    static Reply reply(VtbArtemisSender.Exchange e) {
+        String response = null, error = null;
+
+        try {
+            Message m = e.getReply().join();
+            response = (m instanceof TextMessage) ? ((TextMessage) m).getText() : String.valueOf(m);
+        } catch (CompletionException x) {
+            error = (x.getCause() instanceof TimeoutException) ? "no response" : String.valueOf(x.getCause());
+        } catch (CancellationException x) {
+            error = "cancelled";
+        } catch (JMSException x) {
+            error = x.toString();
+        }
+        return new Reply(e.getCorrelationID(), response, error, millis(e, e.getSent()), millis(e, e.getReplied()));
+    }
 
+    static Double millis(VtbArtemisSender.Exchange e, long time) {
+        return (time == 0) ? null : (time - e.getStarted()) / 1e6;
+    }
 }
@@ -0,0 +1,147 @@
+package org.example.artemisconnectiontest.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.activemq.artemis.api.config.ActiveMQDefaultConfiguration;
+import org.apache.activemq.artemis.api.core.ActiveMQException;
+import org.apache.activemq.artemis.api.core.SimpleString;
+import org.apache.activemq.artemis.api.core.client.ClientMessage;
+import org.apache.activemq.artemis.api.core.client.ClientRequestor;
+import org.apache.activemq.artemis.api.core.client.ClientSession;
+import org.apache.activemq.artemis.api.core.management.ManagementHelper;
+import org.apache.activemq.artemis.api.core.management.ResourceNames;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Состояние адреса на одном брокере: наличие адреса, ограничение консюмеров по умолчанию и очереди адреса
+ * с количеством консюмеров. Используется PlatzCard для оценки брокеров, заполняется запросами к брокеру,
+ * либо поддерживается по уведомлениям брокера (ConsumerCounter)
+ */
+class AddressState {
+    volatile boolean exists;
+    volatile int defaultMaxConsumers;
+    final Map<String,QueueState> queues = new ConcurrentHashMap<> ();
+    private static final ObjectMapper json = new ObjectMapper ();
+
+    /**
+     * Способ запроса состояния адреса у брокера
+     */
+    interface Query {
+        AddressState query (ClientSession session, SimpleString a, SimpleString q) throws ActiveMQException;
+    }
+    //запрос адреса и каждой очереди адреса отдельно
+    static final Query PER_QUEUE = AddressState::query;
+
+    /**
+     * Запрос состояния всех очередей адреса одним запросом управления (broker.listQueues) с отбором по адресу.
+     * Количество обращений к брокеру не зависит от количества очередей адреса.
+     * Если запрос управления не выполнен (например, нет прав manage), используется fallback
+     * @param fallback способ запроса при неудаче запроса управления
+     */
+    static Query management (Query fallback){
+        return (session, a, q) -> {
+            try {
+                return manage (session, a, q);
+            } catch (Exception e) {
+                return fallback.query (session, a, q);
+            }
+        };
+    }
+
+    static class QueueState {
+        volatile int consumers;
+        volatile int maxConsumers;
+        volatile long messages;//сообщения в очереди на момент запроса, уведомлениями не обновляется
+
+        QueueState (int consumers, int maxConsumers, long messages){
+            this.consumers = consumers;
+            this.maxConsumers = maxConsumers;
+            this.messages = messages;
+        }
+    }
+
+    /**
+     * Количество консюмеров на всех очередях адреса
+     */
+    int consumers (){
+        int consumers = 0;
+        for (QueueState s: queues.values ())
+            consumers += s.consumers;
+        return consumers;
+    }
+
+    /**
+     * Метод запрашивает состояние адреса у брокера
+     * @param session сессия к брокеру
+     * @param a адрес
+     * @param q очередь, либо null для всех очередей адреса
+     * @return состояние адреса
+     * @throws ActiveMQException при ошибке запроса
+     */
+    static AddressState query (ClientSession session, SimpleString a, SimpleString q) throws ActiveMQException {
+        AddressState state = new AddressState ();
+        ClientSession.AddressQuery addressQuery = session.addressQuery (a);
+
+        if (addressQuery == null || addressQuery.isExists () == false)
+            return state;
+        state.exists = true;
+        state.defaultMaxConsumers = addressQuery.getDefaultMaxConsumers ();
+        for (SimpleString s : addressQuery.getQueueNames ()) {
+            if (q != null && s.equals (q) == false)
+                continue;
+            ClientSession.QueueQuery queue = session.queueQuery (s);
+
+            if (queue != null && queue.isExists ())
+                state.queues.put (s.toString (), new QueueState (queue.getConsumerCount (), queue.getMaxConsumers (),
+                        queue.getMessageCount ()));
+        }
+        return state;
+    }
+
+    /**
+     * Метод запрашивает состояние адреса у брокера: адрес запросом сессии, очереди - одним запросом управления
+     * @param session сессия к брокеру
+     * @param a адрес
+     * @param q очередь, либо null для всех очередей адреса
+     * @return состояние адреса
+     * @throws Exception при ошибке запроса или отказе брокера выполнить запрос управления
+     */
+    static AddressState manage (ClientSession session, SimpleString a, SimpleString q) throws Exception {
+        AddressState state = new AddressState ();
+        ClientSession.AddressQuery addressQuery = session.addressQuery (a);
+
+        if (addressQuery == null || addressQuery.isExists () == false)
+            return state;
+        state.exists = true;
+        state.defaultMaxConsumers = addressQuery.getDefaultMaxConsumers ();
+
+        ObjectNode options = json.createObjectNode ()
+                .put ("field", "address").put ("operation", "EQUALS").put ("value", a.toString ())
+                .put ("sortColumn", "name").put ("sortOrder", "asc");
+        ClientMessage request = session.createMessage (false);
+        ManagementHelper.putOperationInvocation (request, ResourceNames.BROKER, "listQueues",
+                options.toString (), 1, Integer.MAX_VALUE);
+        ClientRequestor requestor = new ClientRequestor (session, ActiveMQDefaultConfiguration.getDefaultManagementAddress ());
+        ClientMessage reply;
+        try {
+            session.start ();
+            reply = requestor.request (request, session.getSessionFactory ().getServerLocator ().getCallTimeout ());
+        } finally {
+            requestor.close ();
+        }
+        if (reply == null || ManagementHelper.hasOperationSucceeded (reply) == false)
+            throw new ActiveMQException ("listQueues: " + ((reply == null)?"timeout":ManagementHelper.getResult (reply)));
+
+        for (JsonNode queue : json.readTree ((String) ManagementHelper.getResult (reply)).path ("data")) {
+            String name = queue.path ("name").asText ();
+            if (q != null && q.toString ().equals (name) == false)
+                continue;
+            state.queues.put (name, new QueueState (queue.path ("consumerCount").asInt (),
+                    queue.path ("maxConsumers").asInt (), queue.path ("messageCount").asLong ()));
+        }
+        return state;
+    }
+}
@@ -0,0 +1,140 @@
+package org.example.artemisconnectiontest.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Примитивы двоичного формата RequestID и ReportFields:
+ *  - целые без знака - varint (по 7 бит, старший бит - продолжение);
+ *  - строки - varint (длина UTF-8 + 1), 0 - null, затем байты UTF-8, кодируются прямо в буфер без промежуточных строк.
+ */
+final class BinaryCodec {
+    private BinaryCodec (){}
+
+    static void putVarLong (ByteBuffer b, long v){
+        while ((v & ~0x7FL) != 0) {
+            b.put ((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put ((byte) v);
+    }
+
+    static long getVarLong (ByteBuffer b){
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte x = b.get ();
+            v |= (long) (x & 0x7F) << shift;
+            if (x >= 0)
+                return v;
+        }
+        throw new IllegalArgumentException ("varint is too long");
+    }
+
+    /**
+     * Чтение длины (varint) с проверкой, что столько байт есть в буфере
+     * @throws IllegalArgumentException если длина отрицательна или больше остатка буфера
+     */
+    static int getLength (ByteBuffer b){
+        long length = getVarLong (b);
+        if (length < 0 || length > b.remaining ())
+            throw new IllegalArgumentException ("length is out of buffer: " + length);
+        return (int) length;
+    }
+
+    static int sizeOfVarLong (long v){
+        int size = 1;
+        while ((v & ~0x7FL) != 0) {
+            size++;
+            v >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Длина строки в UTF-8 с позиции from
+     */
+    static int utf8Length (String s, int from){
+        int length = 0;
+        for (int i = from; i < s.length (); i++) {
+            char c = s.charAt (i);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate (c) && i + 1 < s.length () && Character.isLowSurrogate (s.charAt (i + 1))) {
+                length += 4;
+                i++;
+            }
+            else
+                length += 3;
+        }
+        return length;
+    }
+
+    /**
+     * Запись строки, начиная с позиции from
+     * @param s строка, может быть null
+     */
+    static void putString (ByteBuffer b, String s, int from){
+        if (s == null) {
+            b.put ((byte) 0);
+            return;
+        }
+        putVarLong (b, utf8Length (s, from) + 1);
+        for (int i = from; i < s.length (); i++) {
+            char c = s.charAt (i);
+            if (c < 0x80)
+                b.put ((byte) c);
+            else if (c < 0x800)
+                b.put ((byte) (0xC0 | c >> 6)).put ((byte) (0x80 | c & 0x3F));
+            else if (Character.isHighSurrogate (c) && i + 1 < s.length () && Character.isLowSurrogate (s.charAt (i + 1))) {
+                int cp = Character.toCodePoint (c, s.charAt (++i));
+                b.put ((byte) (0xF0 | cp >> 18)).put ((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put ((byte) (0x80 | cp >> 6 & 0x3F)).put ((byte) (0x80 | cp & 0x3F));
+            }
+            else
+                b.put ((byte) (0xE0 | c >> 12)).put ((byte) (0x80 | c >> 6 & 0x3F)).put ((byte) (0x80 | c & 0x3F));
+        }
+    }
+    static void putString (ByteBuffer b, String s){
+        putString (b, s, 0);
+    }
+
+    static int sizeOfString (String s, int from){
+        if (s == null)
+            return 1;
+        int length = utf8Length (s, from);
+        return sizeOfVarLong (length + 1) + length;
+    }
+    static int sizeOfString (String s){
+        return sizeOfString (s, 0);
+    }
+
+    /**
+     * Чтение строки
+     * @param prefix приставка, которая была отброшена при записи, либо null
+     * @return строка, либо null
+     */
+    static String getString (ByteBuffer b, String prefix){
+        long v = getVarLong (b);
+        if (v == 0)
+            return null;
+        if (v < 0 || v - 1 > b.remaining ())
+            throw new IllegalArgumentException ("string is out of buffer: " + v);
+        int length = (int) (v - 1);
+        String s;
+        if (b.hasArray ()) {
+            s = new String (b.array (), b.arrayOffset () + b.position (), length, StandardCharsets.UTF_8);
+            b.position (b.position () + length);
+        }
+        else {
+            byte bytes[] = new byte[length];
+            b.get (bytes);
+            s = new String (bytes, StandardCharsets.UTF_8);
+        }
+        return (prefix == null)?s:prefix.concat (s);
+    }
+    static String getString (ByteBuffer b){
+        return getString (b, null);
+    }
+}
@@ -0,0 +1,116 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.apache.activemq.artemis.api.core.ActiveMQNotConnectedException;
+import org.apache.activemq.artemis.api.core.TransportConfiguration;
+import org.apache.activemq.artemis.core.client.impl.ServerLocatorConfig;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Общее для всех фабрик состояние доступности брокеров (circuit breaker).
+ *  CLOSED - брокер доступен, подключения выполняются;
+ *  OPEN - брокер недоступен, подключения сразу завершаются ошибкой NOT_CONNECTED, поэтому PlatzCard
+ *         без ожидания таймаута переходит к поиску реплики (findBackup, findActiveBackups);
+ *  HALF_OPEN - фоновая проверка восстановления брокера, подключения приложений как для OPEN.
+ * Проверка выполняется через backoff после перехода в OPEN, при неудаче интервал удваивается до maxBackoff.
+ * Брокер возвращается в CLOSED после успешной проверки, либо после любого успешного подключения к нему.
+ */
+final class BrokerHealth {
+    static long backoff = 1000;//первая проверка недоступного брокера, мс
+    static long maxBackoff = 60000;//предельный интервал проверки, мс
+
+    enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private static final Map<String,Breaker> breakers = new ConcurrentHashMap<> ();//только недоступные брокеры
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor (r -> {
+        Thread t = new Thread (r, "PlatzCard-health");
+        t.setDaemon (true);
+        return t;
+    });
+
+    private BrokerHealth (){}
+
+    static class Breaker {
+        final TransportConfiguration transport;
+        final ServerLocatorConfig config;
+        volatile State state = State.OPEN;
+        volatile long delay;
+
+        Breaker (TransportConfiguration transport, ServerLocatorConfig config){
+            this.transport = transport;
+            this.config = config;
+        }
+    }
+
+    /**
+     * Состояние брокера
+     */
+    static State state (TransportConfiguration t){
+        Breaker b = breakers.get (PlatzCard.broker (t));
+        return (b == null)?State.CLOSED:b.state;
+    }
+
+    /**
+     * Метод проверяет, можно ли подключаться к брокеру
+     * @param t транспорт к брокеру
+     * @throws JMSException NOT_CONNECTED, если брокер признан недоступным
+     */
+    static void admit (TransportConfiguration t) throws JMSException {
+        if (breakers.containsKey (PlatzCard.broker (t)) == false)
+            return;
+        JMSException e = new JMSException ("NOT_CONNECTED");
+        ActiveMQNotConnectedException cause = new ActiveMQNotConnectedException ("broker is down: " + PlatzCard.broker (t));
+        e.setLinkedException (cause);
+        e.initCause (cause);
+        throw e;
+    }
+
+    /**
+     * Успешное подключение к брокеру
+     */
+    static void success (TransportConfiguration t){
+        breakers.remove (PlatzCard.broker (t));
+    }
+
+    /**
+     * Неудачное подключение к брокеру, брокер переводится в OPEN и ставится на фоновую проверку
+     * @param t транспорт к брокеру
+     * @param config параметры подключения для проверки
+     */
+    static void failure (TransportConfiguration t, ServerLocatorConfig config){
+        breakers.computeIfAbsent (PlatzCard.broker (t), k -> {
+            Breaker b = new Breaker (t, config);
+            schedule (b, backoff);
+            return b;
+        });
+    }
+
+    static void schedule (Breaker b, long delay){
+        b.delay = delay;
+        timer.schedule (() -> check (b), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Фоновая проверка восстановления брокера. Выполняется только в нити timer
+     */
+    static void check (Breaker b){
+        String key = PlatzCard.broker (b.transport);
+        if (breakers.get (key) != b)
+            return;//брокер уже восстановлен
+        b.state = State.HALF_OPEN;
+        try {
+            Connection c = BrokerRegistry.open (b.transport, b.config, false);
+            PlatzCard.closeQuietly (c);
+            breakers.remove (key, b);
+        } catch (JMSException | RuntimeException e) {
+            b.state = State.OPEN;
+            schedule (b, Math.min (b.delay * 2, maxBackoff));
+        }
+    }
+}
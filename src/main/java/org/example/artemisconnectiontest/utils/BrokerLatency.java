@@ -0,0 +1,38 @@
+package org.example.artemisconnectiontest.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общая для всех фабрик оценка задержки до брокеров: скользящее среднее времени создания сессии
+ * (один синхронный обмен с брокером) по host:port. Используется PlatzCard для выбора ближайшего брокера
+ * среди равных по оценке и для штрафа дальних брокеров.
+ */
+final class BrokerLatency {
+    static double alpha = 0.2;//вес нового замера в скользящем среднем
+    private static final Map<String,Double> rtt = new ConcurrentHashMap<> ();
+
+    private BrokerLatency (){}
+
+    /**
+     * Метод учитывает замер задержки
+     * @param broker брокер host:port
+     * @param nanos время обмена, нс
+     */
+    static void sample (String broker, long nanos){
+        if (broker == null)
+            return;
+        double ms = nanos / 1e6;
+        rtt.merge (broker, ms, (old, now) -> old + alpha * (now - old));
+    }
+
+    /**
+     * Оценка задержки до брокера
+     * @param broker брокер host:port
+     * @return задержка, мс, либо NaN, если замеров не было
+     */
+    static double rtt (String broker){
+        Double ms = (broker == null)?null:rtt.get (broker);
+        return (ms == null)?Double.NaN:ms;
+    }
+}
@@ -0,0 +1,126 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.apache.activemq.artemis.api.core.TransportConfiguration;
+import org.apache.activemq.artemis.core.client.impl.ServerLocatorConfig;
+import org.apache.activemq.artemis.jms.client.ActiveMQConnection;
+import org.apache.activemq.artemis.jms.client.ActiveMQConnectionFactory;
+
+import javax.jms.JMSException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общий реестр фабрик соединений к отдельным брокерам. Фабрика (и её ServerLocator с пулами нитей, топологией и
+ * транспортом) создаётся один раз на брокер host:port и режим HA, и используется всеми вызовами PlatzCard.
+ * Фабрика считает выданные соединения и закрывается, когда все её соединения закрыты и она не использовалась
+ * дольше idle миллисекунд. Параметры подключения (ServerLocatorConfig) входят в ключ фабрики: вызовы с разными
+ * параметрами к одному брокеру получают разные фабрики.
+ * Балансировка по топологии у фабрик реестра выключена при любых параметрах: иначе после получения топологии
+ * кластера ServerLocator раздавал бы соединения по кругу всем брокерам кластера, а не указанному брокеру.
+ */
+final class BrokerRegistry {
+    static long idle = 60000;//время жизни фабрики без соединений, мс
+    private static final Map<String,Entry> entries = new ConcurrentHashMap<> ();
+
+    private BrokerRegistry (){}
+
+    static class Entry {
+        final ActiveMQConnectionFactory factory;
+        final ServerLocatorConfig config;//параметры, с которыми создана фабрика
+        final Set<ActiveMQConnection> leased = ConcurrentHashMap.newKeySet ();//выданные соединения
+        int pending;//соединения в процессе создания, изменяется только в entries.compute
+        volatile long used = System.currentTimeMillis ();
+
+        Entry (ActiveMQConnectionFactory factory, ServerLocatorConfig config){
+            this.factory = factory;
+            this.config = config;
+        }
+    }
+
+    /**
+     * Метод создаёт соединение к брокеру через общую фабрику брокера
+     * @param t транспорт к брокеру
+     * @param config параметры подключения, либо null для параметров по умолчанию
+     * @param ha true - соединение с переключением на резервный брокер
+     * @return новое соединение, закрывается вызывающим
+     * @throws JMSException при невозможности подключиться к брокеру, либо если брокер признан недоступным (BrokerHealth)
+     */
+    static ActiveMQConnection connect (TransportConfiguration t, ServerLocatorConfig config, boolean ha)
+            throws JMSException {
+        BrokerHealth.admit (t);
+        try {
+            ActiveMQConnection c = open (t, config, ha);
+            BrokerHealth.success (t);
+            return c;
+        } catch (JMSException e) {
+            if (PlatzCard.unreachable (e))
+                BrokerHealth.failure (t, config);
+            throw e;
+        }
+    }
+
+    /**
+     * Метод создаёт соединение через общую фабрику брокера без учёта доступности брокера
+     */
+    static ActiveMQConnection open (TransportConfiguration t, ServerLocatorConfig config, boolean ha)
+            throws JMSException {
+        String key = key (t, config, ha);
+        Entry entry = entries.compute (key, (k, e) -> {
+            if (e == null) {
+                //копия транспорта, чтобы не зависеть от изменений исходного
+                ActiveMQConnectionFactory cf = new ActiveMQConnectionFactory (ha,
+                        new TransportConfiguration (t.getFactoryClassName (), new HashMap<> (t.getParams ())));
+                if (config != null)
+                    cf.getServerLocator ().setLocatorConfig (config);
+                //только указанный брокер, а не члены топологии по кругу
+                cf.getServerLocator ().setUseTopologyForLoadBalancing (false);
+                e = new Entry (cf, config);
+            } else if (e.config != config)
+                throw new IllegalStateException ("locator config mismatch for " + k);
+            e.pending++;
+            return e;
+        });
+        try {
+            ActiveMQConnection c = (ActiveMQConnection) entry.factory.createConnection ();
+            entry.leased.add (c);
+            return c;
+        } finally {
+            entries.compute (key, (k, e) -> {
+                e.pending--;
+                e.used = System.currentTimeMillis ();
+                return e;
+            });
+            purge ();
+        }
+    }
+
+    /**
+     * Ключ фабрики: режим HA, брокер host:port и параметры подключения (по идентичности объекта)
+     */
+    static String key (TransportConfiguration t, ServerLocatorConfig config, boolean ha){
+        return (ha ? "ha/" : "") + PlatzCard.broker (t)
+                + ((config == null)?"":"/" + Integer.toHexString (System.identityHashCode (config)));
+    }
+
+    /**
+     * Метод закрывает фабрики, все соединения которых закрыты и которые не использовались дольше idle
+     */
+    static void purge (){
+        long now = System.currentTimeMillis ();
+
+        for (String key : entries.keySet ()) {
+            Entry[] closed = new Entry[1];
+            entries.computeIfPresent (key, (k, e) -> {
+                e.leased.removeIf (c -> c.getSessionFactory ().isClosed ());
+                if (e.pending > 0 || e.leased.isEmpty () == false || now - e.used < idle)
+                    return e;
+                closed[0] = e;
+                return null;
+            });
+            if (closed[0] != null)
+                closed[0].factory.close ();
+        }
+    }
+}
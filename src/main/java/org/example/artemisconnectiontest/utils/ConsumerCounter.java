@@ -0,0 +1,206 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.apache.activemq.artemis.api.config.ActiveMQDefaultConfiguration;
+import org.apache.activemq.artemis.api.core.RoutingType;
+import org.apache.activemq.artemis.api.core.SimpleString;
+import org.apache.activemq.artemis.api.core.TransportConfiguration;
+import org.apache.activemq.artemis.api.core.client.ClientConsumer;
+import org.apache.activemq.artemis.api.core.client.ClientMessage;
+import org.apache.activemq.artemis.api.core.client.ClientSession;
+import org.apache.activemq.artemis.api.core.client.FailoverEventType;
+import org.apache.activemq.artemis.api.core.management.ManagementHelper;
+import org.apache.activemq.artemis.core.client.impl.ServerLocatorConfig;
+import org.apache.activemq.artemis.jms.client.ActiveMQConnection;
+
+import javax.jms.JMSException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Таблица консюмеров адреса по брокерам, поддерживаемая по уведомлениям брокеров.
+ * На каждый брокер оформляется подписка на адрес уведомлений (activemq.notifications) с фильтром по адресу,
+ * после подписки таблица один раз заполняется запросами (addressQuery/queueQuery), дальше изменяется по событиям
+ * CONSUMER_CREATED/CONSUMER_CLOSED (количество консюмеров очереди передаётся в уведомлении),
+ * а BINDING_ADDED/ADDRESS_ADDED вызывают повторный запрос состояния адреса.
+ * При обрыве подписки данные брокера считаются недостоверными (lookup возвращает null) до повторной подписки,
+ * которая выполняется периодически в фоне с повторным запросом состояния.
+ * Для подписки брокер должен разрешать создание временных очередей на адресе уведомлений.
+ */
+class ConsumerCounter implements AutoCloseable {
+    static final String FILTER = ManagementHelper.HDR_NOTIFICATION_TYPE + " IN ('CONSUMER_CREATED','CONSUMER_CLOSED'," +
+            "'BINDING_ADDED','BINDING_REMOVED','ADDRESS_ADDED','ADDRESS_REMOVED') AND " + ManagementHelper.HDR_ADDRESS + "='";
+    final SimpleString address;
+    final ServerLocatorConfig config;
+    SimpleString notifications = ActiveMQDefaultConfiguration.getDefaultManagementNotificationAddress ();
+    final Map<String,Broker> brokers = new ConcurrentHashMap<> ();
+    final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor (r -> {
+        Thread t = new Thread (r, "PlatzCard-counter");
+        t.setDaemon (true);
+        return t;
+    });
+
+    /**
+     * Подписка на уведомления одного брокера
+     */
+    static class Broker {
+        final TransportConfiguration transport;
+        volatile AddressState state;//null - нет подписки, либо таблица не синхронизирована
+        ActiveMQConnection connection;
+        ClientSession session;
+
+        Broker (TransportConfiguration transport){
+            this.transport = transport;
+        }
+    }
+
+    /**
+     * @param address адрес, консюмеры которого учитываются
+     * @param config параметры подключения к брокерам
+     * @param period период повторной подписки после обрыва, мс
+     */
+    ConsumerCounter (SimpleString address, ServerLocatorConfig config, long period){
+        this.address = address;
+        this.config = config;
+        timer.scheduleWithFixedDelay (this::resubscribe, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Метод добавляет брокер в таблицу, подписка выполняется асинхронно
+     * @param t транспорт к брокеру
+     */
+    void watch (TransportConfiguration t){
+        if (t == null)
+            return;
+        brokers.computeIfAbsent (PlatzCard.broker (t), k -> {
+            Broker b = new Broker (t);
+            timer.execute (() -> subscribe (b));
+            return b;
+        });
+    }
+
+    /**
+     * Метод выдаёт состояние адреса на брокере без обращения к брокеру
+     * @param t транспорт к брокеру
+     * @return состояние адреса, либо null, если брокер не отслеживается или подписка оборвана
+     */
+    AddressState lookup (TransportConfiguration t){
+        Broker b = (t != null)?brokers.get (PlatzCard.broker (t)):null;
+        return (b != null)?b.state:null;
+    }
+
+    /**
+     * Метод помечает данные брокера недостоверными, например, если к нему не удалось подключиться
+     * @param t транспорт к брокеру
+     */
+    void drop (TransportConfiguration t){
+        Broker b = (t != null)?brokers.get (PlatzCard.broker (t)):null;
+        if (b != null) {
+            b.state = null;
+            timer.execute (() -> subscribe (b));
+        }
+    }
+
+    void resubscribe (){
+        for (Broker b: brokers.values ())
+            if (b.state == null)
+                subscribe (b);
+    }
+
+    /**
+     * Подписка на уведомления брокера с заполнением таблицы запросом. Выполняется только в нити timer
+     */
+    void subscribe (Broker b){
+        if (b.state != null)
+            return;
+        unsubscribe (b);
+        try {
+            b.connection = BrokerRegistry.connect (b.transport, config, false);
+            b.connection.setFailoverListener (eventType -> {
+                b.state = null;//уведомления могли потеряться
+                if (eventType == FailoverEventType.FAILOVER_COMPLETED)
+                    timer.execute (() -> resync (b));
+            });
+            b.session = b.connection.getSessionFactory ().createSession (false, true, true);
+            SimpleString queue = new SimpleString ("platzcard." + UUID.randomUUID ());
+            b.session.createTemporaryQueue (notifications, RoutingType.MULTICAST, queue,
+                    new SimpleString (FILTER + address + "'"));
+            ClientConsumer consumer = b.session.createConsumer (queue);
+            consumer.setMessageHandler (m -> notify (b, m));
+            b.session.start ();
+            resync (b);
+        } catch (Exception e) {//попробуем в следующий раз
+            unsubscribe (b);
+        }
+    }
+
+    /**
+     * Повторное заполнение таблицы брокера запросом. Выполняется только в нити timer
+     */
+    void resync (Broker b){
+        if (b.connection == null)
+            return;
+        try {
+            ClientSession session = b.connection.getSessionFactory ().createSession (false, false);
+            AddressState state = AddressState.query (session, address, null);
+            session.close ();
+            b.state = state;
+        } catch (Exception e) {
+            b.state = null;
+        }
+    }
+
+    void notify (Broker b, ClientMessage m){
+        AddressState state = b.state;
+
+        if (state == null)
+            return;//таблица будет заполнена запросом
+        String type = m.getStringProperty (ManagementHelper.HDR_NOTIFICATION_TYPE);
+        String queue = m.getStringProperty (ManagementHelper.HDR_ROUTING_NAME);
+
+        switch (type) {
+            case "CONSUMER_CREATED":
+            case "CONSUMER_CLOSED":
+                if (m.containsProperty (ManagementHelper.HDR_DISTANCE)
+                        && m.getIntProperty (ManagementHelper.HDR_DISTANCE) > 0)
+                    break;//консюмер другого брокера кластера
+                AddressState.QueueState s = state.queues.get (queue);
+                if (s != null && m.containsProperty (ManagementHelper.HDR_CONSUMER_COUNT))
+                    s.consumers = m.getIntProperty (ManagementHelper.HDR_CONSUMER_COUNT);
+                else
+                    timer.execute (() -> resync (b));
+                break;
+            case "BINDING_REMOVED":
+                if (queue != null)
+                    state.queues.remove (queue);
+                break;
+            case "ADDRESS_REMOVED":
+                state.exists = false;
+                state.queues.clear ();
+                break;
+            default://BINDING_ADDED, ADDRESS_ADDED - ограничения новой очереди/адреса известны только из запроса
+                timer.execute (() -> resync (b));
+        }
+    }
+
+    void unsubscribe (Broker b){
+        b.state = null;
+        if (b.connection != null) try {
+            b.connection.close ();//сессия и временная очередь закрываются вместе с соединением
+        } catch (JMSException e) {
+        }
+        b.connection = null;
+        b.session = null;
+    }
+
+    @Override
+    public void close (){
+        timer.shutdownNow ();
+        for (Broker b: brokers.values ())
+            unsubscribe (b);
+        brokers.clear ();
+    }
+}
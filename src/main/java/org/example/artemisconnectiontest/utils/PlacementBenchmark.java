@@ -0,0 +1,79 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.apache.activemq.artemis.api.core.SimpleString;
+import org.apache.activemq.artemis.api.core.TransportConfiguration;
+import org.apache.activemq.artemis.core.remoting.impl.netty.NettyConnectorFactory;
+import org.apache.activemq.artemis.core.remoting.impl.netty.TransportConstants;
+
+import java.util.*;
+
+/**
+ * Сравнение выборочного опроса брокеров (sample=k) с полным опросом (sample=0) без подключения к кластеру.
+ * Брокеры моделируются состоянием адреса, консюмеры подключаются по одному и размещаются
+ * PlatzCard.score/choose так же, как в getConsumerConnection. Для каждого k выводится:
+ *  probes - опрошено брокеров на одно подключение (стоимость выбора),
+ *  spread - разница между самым загруженным и наименее загруженным брокером после размещения (качество),
+ *  stddev - стандартное отклонение количества консюмеров по брокерам.
+ *
+ *  java ... PlacementBenchmark [брокеров=24] [консюмеров=1000] [повторов=20]
+ */
+class PlacementBenchmark {
+    public static void main (String[] args){
+        int brokers = (args.length > 0)?Integer.parseInt (args[0]):24;
+        int consumers = (args.length > 1)?Integer.parseInt (args[1]):1000;
+        int runs = (args.length > 2)?Integer.parseInt (args[2]):20;
+        SimpleString a = new SimpleString ("benchmark");
+        TransportConfiguration transport[] = new TransportConfiguration[brokers];
+
+        for (int i = 0; i < brokers; i++) {
+            Map<String,Object> params = new HashMap<> ();
+            params.put (TransportConstants.HOST_PROP_NAME, "broker" + i);
+            params.put (TransportConstants.PORT_PROP_NAME, "61616");
+            transport[i] = new TransportConfiguration (NettyConnectorFactory.class.getName (), params);
+        }
+        System.out.printf ("brokers=%d consumers=%d runs=%d%n", brokers, consumers, runs);
+        for (int k : new int[]{0, 1, 2, 3, 4, brokers / 2}) {
+            long probes = 0, spread = 0, nanos = System.nanoTime ();
+            double stddev = 0;
+
+            for (int run = 0; run < runs; run++) {
+                Map<String,AddressState> states = new HashMap<> ();
+                Random random = new Random (run);
+                for (TransportConfiguration t : transport) {
+                    AddressState state = new AddressState ();
+                    state.exists = true;
+                    //начальная неравномерность - консюмеры других приложений
+                    state.queues.put (a.toString (), new AddressState.QueueState (random.nextInt (10), 0, 0));
+                    states.put (PlatzCard.broker (t), state);
+                }
+                for (int c = 0; c < consumers; c++) {
+                    TransportConfiguration candidates[] = (k > 0 && k < brokers)?PlatzCard.sample (transport, k):transport;
+                    List<PlatzCard.Probe> survey = new ArrayList<> (candidates.length);
+                    for (TransportConfiguration t : candidates) {
+                        PlatzCard.Probe p = new PlatzCard.Probe (t);
+                        p.counted = true;
+                        PlatzCard.score (p, states.get (PlatzCard.broker (t)), null, a, false, PlatzCard.HALevel.BOOS);
+                        survey.add (p);
+                    }
+                    probes += survey.size ();
+                    PlatzCard.Probe chosen = PlatzCard.choose (survey, false, false, 0);
+                    states.get (PlatzCard.broker (chosen.transport)).queues.get (a.toString ()).consumers++;
+                }
+                int min = Integer.MAX_VALUE, max = 0;
+                double sum = 0, square = 0;
+                for (AddressState state : states.values ()) {
+                    int n = state.consumers ();
+                    min = Math.min (min, n);
+                    max = Math.max (max, n);
+                    sum += n;
+                    square += (double) n * n;
+                }
+                spread += max - min;
+                stddev += Math.sqrt (square / brokers - (sum / brokers) * (sum / brokers));
+            }
+            System.out.printf ("k=%-3s probes=%6.2f spread=%6.2f stddev=%6.2f time=%dms%n",
+                    (k == 0)?"all":String.valueOf (k), (double) probes / consumers / runs, (double) spread / runs,
+                    stddev / runs, (System.nanoTime () - nanos) / 1000000);
+        }
+    }
+}
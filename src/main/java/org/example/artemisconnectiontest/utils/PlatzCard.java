@@ -13,7 +13,13 @@ import org.apache.activemq.artemis.jms.client.ActiveMQConnectionFactory;
 import org.apache.activemq.artemis.spi.core.protocol.RemotingConnection;
 
 import javax.jms.*;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 /**
  * Фабрика соединений с балансировкой соединений по количеству консюмеров для заданного адреса. В любом режиме
@@ -23,6 +29,7 @@ import java.util.*;
  *           если указан address::queue, то распределение руководствуется ограничением на количество подключений к очереди
  *           если указан address (без ::queue), то учитывется общее количество всех консюмеров адреса без ограничений
  * sticky - выбирает только первое подключение, остальные повторяют выбор с учётом HA
+ *          standby - держит запасное соединение к выбранному брокеру (standbyBackup - и к его резервному брокеру)
  * level (MC|BC|BOOS) - способ "упаковки" соединений по брокерам
  *      MC - при compact=true в одной HA-паре подключения к адресу допускаются только к одному брокеру
  *           при compact=false сначала дополняются одинокие консюмеры на адресах, затем занимаются другие брокеры так,
@@ -40,6 +47,56 @@ public class PlatzCard extends ActiveMQConnectionFactory {
     //признак постоянства выбора брокера в режиме фабрики соединения - выбор только для первого вызова
     boolean sticky; public boolean getSticky (){return sticky;} public void setSticky (boolean s){sticky = s;}
     private volatile ServerLocatorImpl   leader;
+    //запасное соединение к выбранному брокеру в режиме sticky, пополняется в фоне после каждой выдачи
+    boolean standby; public boolean getStandby (){return standby;} public void setStandby (boolean s){standby = s;}
+    //дополнительно держать запасное соединение к резервному брокеру выбранного
+    boolean standbyBackup; public boolean getStandbyBackup (){return standbyBackup;} public void setStandbyBackup (boolean s){standbyBackup = s;}
+    private final AtomicReference<Connection> spare = new AtomicReference<> (), spareBackup = new AtomicReference<> ();
+    private final AtomicBoolean refilling = new AtomicBoolean ();
+    //таблица консюмеров адреса по уведомлениям брокеров, null - не ведётся
+    private volatile ConsumerCounter counter;
+    long resyncPeriod = 5000;//период повторной подписки на уведомления после обрыва, мс
+    //учёт очереди сообщений при выборе брокера: сколько сообщений в очереди приравнивается к одному консюмеру,
+    //0 - выбор только по консюмерам
+    double backlogWeight = 0;
+    public double getBacklogWeight (){return backlogWeight;} public void setBacklogWeight (double w){backlogWeight = w;}
+    //горизонт прогноза очереди по скорости её роста, с; 0 - скорость не учитывается
+    double rateHorizon = 0;
+    public double getRateHorizon (){return rateHorizon;} public void setRateHorizon (double h){rateHorizon = h;}
+    //последние замеры очередей по брокерам для оценки скорости: {время, сообщения, скорость}
+    final Map<String,double[]> rates = new ConcurrentHashMap<> ();
+    //способ запроса состояния адреса у брокеров: по очередям, либо одним запросом управления
+    private volatile AddressState.Query stateQuery = AddressState.PER_QUEUE;
+    public boolean getManagementQuery (){return stateQuery != AddressState.PER_QUEUE;}
+    public void setManagementQuery (boolean m){stateQuery = m ? AddressState.management (AddressState.PER_QUEUE) : AddressState.PER_QUEUE;}
+    void setStateQuery (AddressState.Query q){stateQuery = (q == null)?AddressState.PER_QUEUE:q;}
+    //выборочный опрос: количество случайных брокеров, опрашиваемых при выборе подключения, 0 - опрашивать все.
+    //меньше брокеров - быстрее выбор, но хуже равномерность (2 - "power of two choices")
+    int sample = 0; public int getSample (){return sample;} public void setSample (int k){sample = Math.max (0, k);}
+    //штраф за задержку до брокера: сколько мс задержки приравнивается к одному консюмеру, 0 - без штрафа.
+    //ближайший брокер выбирается среди равных по оценке в любом случае
+    double latencyPenalty = 0;
+    public double getLatencyPenalty (){return latencyPenalty;} public void setLatencyPenalty (double p){latencyPenalty = p;}
+    //файл снимка топологии для старта без своего ЦОД, null - снимок не ведётся
+    private volatile String topologyFile;
+    //фоновый перераспределитель выданных соединений, null - не используется
+    private volatile Rebalancer rebalancer;
+    //ограничения параллельного опроса брокеров при выборе подключения, мс
+    long probeTimeout = 30000;//общий срок опроса всех брокеров
+    long brokerTimeout = 15000;//срок ожидания одного брокера, не ответившие в срок в выборе не участвуют
+    public long getProbeTimeout (){return probeTimeout;} public void setProbeTimeout (long t){probeTimeout = t;}
+    public long getBrokerTimeout (){return brokerTimeout;} public void setBrokerTimeout (long t){brokerTimeout = t;}
+    //опрос брокеров выполняется в виртуальных нитях, пул общий для всех фабрик
+    static final ExecutorService prober = Executors.newVirtualThreadPerTaskExecutor ();
+
+    /**
+     * Перенос консюмера приложения на другое соединение, используется при перераспределении консюмеров.
+     * Метод должен создать на соединении to сессию и консюмер взамен работающих на from, и закрыть консюмер на from.
+     * Соединение from закрывается фабрикой после успешного возврата из метода, при исключении закрывается to.
+     */
+    public interface Migrator {
+        void migrate (Connection from, Connection to) throws JMSException;
+    }
 
     public enum HALevel{
         MC, //исключать подключение к очереди, если на парном брокере есть подключения к адресу
@@ -116,18 +173,193 @@ public class PlatzCard extends ActiveMQConnectionFactory {
             Connection c = null;
             if (sticky == false || leader == null)
                 c = createConsumerConnection (address, level, compact);
-            else
+            else if ((c = takeSpare ()) == null)
                 c = followerConnection ();
             if (c == null)
                 throw new JMSException ("NOT_CONNECTED");
             if (leader == null)
                 leader = (ServerLocatorImpl) ((ActiveMQConnection)c).getSessionFactory ().getServerLocator ();
+            if (sticky)
+                refill ();
+            Rebalancer rebalancer = this.rebalancer;
+            if (rebalancer != null)
+                rebalancer.issue (c);
             return c;
         } catch (InterruptedException e) {
             throw new JMSException ("NOT_CONNECTED");
         }
     }
     static final int backup_shift = 100;//сдвиг портов colocated_backup_01 по умолчанию.
+
+    /**
+     * Метод включает ведение таблицы консюмеров адреса фабрики по уведомлениям брокеров.
+     * Фабрика подписывается на уведомления каждого брокера из url (и парных брокеров для compact), после чего
+     * выбор брокера выполняется по таблице без запросов к брокерам. Пока таблица не заполнена для всех
+     * брокеров, используются запросы.
+     * @param on true - вести таблицу, false - прекратить подписки
+     */
+    public synchronized void setConsumerCounting (boolean on){
+        if (on && counter == null && address != null && address.isEmpty () == false) {
+            counter = new ConsumerCounter (new SimpleString (address.split ("::")[0]),
+                    getServerLocator ().getLocatorConfig (), resyncPeriod);
+            for (TransportConfiguration t : getStaticConnectors ())
+                counter.watch (t);
+        }
+        else if (on == false && counter != null) {
+            counter.close ();
+            counter = null;
+        }
+    }
+    public boolean getConsumerCounting (){return counter != null;}
+
+    /**
+     * Метод запускает фоновое перераспределение консюмеров, выданных фабрикой после запуска.
+     * Перераспределитель следит за топологией кластера (обновляя топологию фабрики), периодически и при изменении
+     * топологии сравнивает размещение соединений с правилами HALevel/compact и переносит не более maxMigrations
+     * консюмеров за цикл. Перенос выполняется через migrator: сначала новое соединение, потом закрытие старого.
+     * @param migrator перенос консюмера приложения на новое соединение
+     * @param period период проверки размещения, мс
+     * @param maxMigrations максимальное количество переносов за цикл
+     */
+    public synchronized void startRebalancer (Migrator migrator, long period, int maxMigrations){
+        stopRebalancer ();
+        rebalancer = new Rebalancer (this, migrator, period, maxMigrations);
+    }
+    public synchronized void stopRebalancer (){
+        if (rebalancer != null) {
+            rebalancer.close ();
+            rebalancer = null;
+        }
+    }
+
+    /**
+     * Метод заменяет топологию фабрики топологией, которая поддерживается в актуальном состоянии
+     * @param topology топология постоянного подключения к кластеру
+     */
+    void refreshTopology (Topology topology){
+        if (topology != null) {
+            this.topology = topology;
+            saveTopology ();
+        }
+    }
+
+    /**
+     * Метод включает снимок топологии в файле. Если фабрика ещё не получила топологию, топология сразу
+     * загружается из снимка (выбор резервных брокеров возможен без подключения к кластеру), после чего
+     * в фоне запрашивается у кластера по url_topology и заменяет снимок. Снимок обновляется при получении
+     * топологии от кластера и при закрытии фабрики.
+     * @param file файл снимка, null - не вести снимок
+     */
+    public void setTopologyFile (String file){
+        topologyFile = file;
+        if (file == null)
+            return;
+        if (topology == null) {
+            TransportConfiguration own[] = getStaticConnectors ();//пароли хранилищ в снимке не сохраняются
+            Topology snapshot = TopologySnapshot.load (Path.of (file), TopologySnapshot.secrets ((own.length > 0)?own[0]:null));
+            if (snapshot != null && topology == null)
+                topology = snapshot;
+        }
+        prober.execute (() -> {
+            try {
+                Topology live = clusterTopology ();
+                if (live != null && live.getMembers ().isEmpty () == false)
+                    refreshTopology (live);
+            } catch (JMSException e) {//кластер недоступен, работаем по снимку
+            }
+        });
+    }
+    public String getTopologyFile (){return topologyFile;}
+
+    /**
+     * Метод сохраняет текущую топологию фабрики в файл снимка
+     */
+    void saveTopology (){
+        String file = topologyFile;
+        Topology topology = this.topology;
+        if (file != null && topology != null) try {
+            TopologySnapshot.save (topology, Path.of (file));
+        } catch (IOException | RuntimeException e) {//снимок останется прежним
+        }
+    }
+
+    /**
+     * Метод выдаёт запасное соединение режима sticky: к выбранному брокеру, а если оно потеряно - к резервному
+     * @return живое запасное соединение, либо null
+     */
+    Connection takeSpare (){
+        for (AtomicReference<Connection> ref : List.of (spare, spareBackup)) {
+            Connection c = ref.getAndSet (null);
+            if (c != null && ((ActiveMQConnection) c).getSessionFactory ().isClosed () == false)
+                return c;
+            closeQuietly (c);
+        }
+        return null;
+    }
+
+    /**
+     * Метод в фоне восстанавливает запасные соединения режима sticky.
+     * Соединение к резервному брокеру ищется по топологии, поэтому при падении выбранного брокера
+     * новый консюмер получает соединение без ожидания топологии и подключения к резерву
+     */
+    void refill (){
+        if (standby == false || leader == null || refilling.compareAndSet (false, true) == false)
+            return;
+        prober.execute (() -> {
+            try {
+                if (alive (spare.get ()) == false)
+                    offer (spare, followerConnection ());
+                if (standbyBackup && alive (spareBackup.get ()) == false) {
+                    TransportConfiguration live = leader.getInitialConnectors ()[0];
+                    if (topology == null)
+                        topology = anyTopology (this, _url_topology, null);
+                    TransportConfiguration backup = (topology != null)?findBackup (live, topology):null;
+                    if (backup != null)
+                        offer (spareBackup, BrokerRegistry.connect (backup, leader.getLocatorConfig (), true));
+                }
+            } catch (JMSException | RuntimeException e) {//попробуем при следующей выдаче
+            } finally {
+                refilling.set (false);
+            }
+        });
+    }
+
+    static boolean alive (Connection c){
+        return c != null && ((ActiveMQConnection) c).getSessionFactory ().isClosed () == false;
+    }
+
+    static void offer (AtomicReference<Connection> ref, Connection c){
+        Connection old = ref.getAndSet (c);
+        if (old != c)
+            closeQuietly (old);
+    }
+
+    static void closeQuietly (Connection c){
+        if (c != null) try {
+            c.close ();
+        } catch (JMSException e) {
+        }
+    }
+
+    @Override
+    public void close (){
+        stopRebalancer ();
+        setConsumerCounting (false);
+        closeQuietly (spare.getAndSet (null));
+        closeQuietly (spareBackup.getAndSet (null));
+        saveTopology ();
+        super.close ();
+    }
+
+    /**
+     * Нормализованный указатель на брокер host:port для использования в качестве ключа
+     * @param t транспорт к брокеру
+     * @return строка host:port
+     */
+    static String broker (TransportConfiguration t){
+        return String.valueOf (t.getParams ().get (TransportConstants.HOST_PROP_NAME)).toLowerCase ()
+                + ":" + t.getParams ().get (TransportConstants.PORT_PROP_NAME);
+    }
     /**
      * Метод создаёт соединение для доступа к очереди address с учётом количества уже установленных подключений к очереди
      * если address - это адрес, то оценивается все очереди, либо оценивается конкретная очередь.
@@ -200,14 +432,13 @@ public class PlatzCard extends ActiveMQConnectionFactory {
         String port = broker.split (":")[1];
         clone.getParams ().put (TransportConstants.HOST_PROP_NAME,host);
         clone.getParams ().put (TransportConstants.PORT_PROP_NAME,port);
-        ActiveMQConnectionFactory cf2 = new ActiveMQConnectionFactory (true, clone);
-        cf2.getServerLocator ().setLocatorConfig (locator.getLocatorConfig ());
-
-        return cf2.createConnection ();
+        return BrokerRegistry.connect (clone, locator.getLocatorConfig (), true);
     }
 
     /**
      * Метод получения повторного подключения к выбранному ранее брокеру, но с учётом HA
+     * Задержка до брокеров (BrokerLatency, latencyPenalty) здесь не учитывается: кандидат всегда один - брокер лидера,
+     * либо его реплика, которая держит те же очереди, выбор более близкого брокера оторвал бы консюмер от его данных
      * @return
      * @throws InterruptedException
      * @throws JMSException
@@ -218,11 +449,8 @@ public class PlatzCard extends ActiveMQConnectionFactory {
             return null;
         TransportConfiguration clone = new TransportConfiguration (leader.getInitialConnectors ()[0].getFactoryClassName (),
                 new HashMap<> (leader.getInitialConnectors ()[0].getParams ()));
-        ActiveMQConnectionFactory cf2 = new ActiveMQConnectionFactory (true, clone);
-        cf2.getServerLocator ().setLocatorConfig (leader.getLocatorConfig ());
-
         try {
-            return cf2.createConnection();
+            return BrokerRegistry.connect (clone, leader.getLocatorConfig (), true);
         }
         catch (JMSException e){
             switch (((ActiveMQException)e.getCause ()).getType ()) {
@@ -242,9 +470,7 @@ public class PlatzCard extends ActiveMQConnectionFactory {
                 backup = findLive (clone,topology);
             if (backup == null)
                 throw new JMSException  ("NOT_CONNECTED");
-            cf2 = new ActiveMQConnectionFactory (true, backup);
-            cf2.getServerLocator ().setLocatorConfig (leader.getLocatorConfig ());
-            return cf2.createConnection ();//в случае недоступности реплики будет выход по JMSException
+            return BrokerRegistry.connect (backup, leader.getLocatorConfig (), true);//в случае недоступности реплики будет выход по JMSException
         }
     }
 
@@ -343,11 +569,8 @@ public class PlatzCard extends ActiveMQConnectionFactory {
                 //брокер найден, создаём транспортную конфигурацию для подключения
                 TransportConfiguration clone = new TransportConfiguration (tr.getFactoryClassName (),
                         new HashMap<> (locator.getInitialConnectors ()[0].getParams ()));
-                ActiveMQConnectionFactory cf2 = new ActiveMQConnectionFactory (true, clone);
-                cf2.getServerLocator ().setLocatorConfig (locator.getLocatorConfig ());
-
                 try {//пытаемся подключиться
-                    return cf2.createConnection ();
+                    return BrokerRegistry.connect (clone, locator.getLocatorConfig (), true);
                 }
                 catch (JMSException e){
                     switch (((ActiveMQException)e.getCause ()).getType ()) {
@@ -363,9 +586,7 @@ public class PlatzCard extends ActiveMQConnectionFactory {
                         topology = anyTopology (cf,_url_topology, connection);
                     //тут 100% должна быть топология
                     clone = findBackup (tr,topology);//поиск резервной реплики
-                    cf2 = new ActiveMQConnectionFactory (true, clone);
-                    cf2.getServerLocator ().setLocatorConfig (locator.getLocatorConfig ());
-                    return cf2.createConnection ();//в случае недоступности реплики будет выход по JMSException
+                    return BrokerRegistry.connect (clone, locator.getLocatorConfig (), true);//в случае недоступности реплики будет выход по JMSException
                 }
             }
         }
@@ -386,10 +607,8 @@ public class PlatzCard extends ActiveMQConnectionFactory {
                 //надо сделать копию транспортного указателя, чтобы не испортить топологию фабрики
                 clone = new TransportConfiguration (clone.getFactoryClassName (),
                         new HashMap<> (clone.getParams ()));
-                ActiveMQConnectionFactory cf2 = new ActiveMQConnectionFactory (true, clone);
-                cf2.getServerLocator ().setLocatorConfig (locator.getLocatorConfig ());
                 //пытаемся подключиться
-                return cf2.createConnection ();
+                return BrokerRegistry.connect (clone, locator.getLocatorConfig (), true);
             }
         }
         return null;
@@ -401,37 +620,15 @@ public class PlatzCard extends ActiveMQConnectionFactory {
      * @return
      */
     public TransportConfiguration findPartner (TransportConfiguration t) {
-        if (topology == null)
+        TopologyIndex index = TopologyIndex.of (topology);
+        if (index == null)
             return null;
-        TransportConfiguration backup = null;
-        Object host = t.getParams ().get (TransportConstants.HOST_PROP_NAME);
-        Object port = t.getParams ().get (TransportConstants.PORT_PROP_NAME);
-
-        for (TopologyMemberImpl member : topology.getMembers ()) {
-            if (host.equals (member.getLive ().getParams ().get (TransportConstants.HOST_PROP_NAME))
-                    && port.equals (member.getLive ().getParams ().get (TransportConstants.PORT_PROP_NAME))) {
-                String host_backup = (String) member.getBackup ().getParams ().get (TransportConstants.HOST_PROP_NAME);
-                String port_backup = (String) member.getBackup ().getParams ().get (TransportConstants.PORT_PROP_NAME);
-                int backup_port = Integer.parseInt (port_backup.toString ()) - backup_shift;
-
-                for (TopologyMemberImpl other : topology.getMembers ()) {
-                    TransportConfiguration live = other.getLive ();
-                    String host_live = (String) live.getParams ().get (TransportConstants.HOST_PROP_NAME);
-                    String port_live = (String) live.getParams ().get (TransportConstants.PORT_PROP_NAME);
-
-                    if (host_live.equals (host_backup) && backup_port == Integer.parseUnsignedInt (port_live.toString ())){
-                        backup = live;
-                        break;
-                    }
-                }
-            }
-        }
-        return backup;
+        return index.partners.get (broker (t));
     }
 
     /**
      * Метод выдаёт подключение к бекапу по подключению к мастеру
-     * Топология должна быть загружена
+     * Топология должна быть загружена. Резерв у мастера один, поэтому задержка до брокеров не учитывается
      * @param t подключение к master
      * @return транспорт к бэкапу
      */
@@ -439,17 +636,10 @@ public class PlatzCard extends ActiveMQConnectionFactory {
         return findBackup (t,topology);
     }
     public  static TransportConfiguration findBackup (TransportConfiguration t, Topology topology) {
-        if (topology == null)
+        TopologyIndex index = TopologyIndex.of (topology);
+        if (index == null)
             return null;
-        Object host = t.getParams ().get (TransportConstants.HOST_PROP_NAME);
-        Object port = t.getParams ().get (TransportConstants.PORT_PROP_NAME);
-
-        for (TopologyMemberImpl member : topology.getMembers ()) {
-            if (host.equals (member.getLive ().getParams ().get (TransportConstants.HOST_PROP_NAME))
-                    && port.equals (member.getLive ().getParams ().get (TransportConstants.PORT_PROP_NAME)))
-                return member.getBackup ();
-        }
-        return null;
+        return index.backups.get (broker (t));
     }
 
     /**
@@ -466,12 +656,10 @@ public class PlatzCard extends ActiveMQConnectionFactory {
         return findLive (host, port, topology);
     }
     public  static TransportConfiguration findLive (String host, String port, Topology topology) {
-        for (TopologyMemberImpl member : topology.getMembers ()) {
-            if (host.equals (member.getBackup ().getParams ().get (TransportConstants.HOST_PROP_NAME))
-                    && port.equals (member.getBackup ().getParams ().get (TransportConstants.PORT_PROP_NAME)))
-                return member.getLive ();
-        }
-        return null;
+        TopologyIndex index = TopologyIndex.of (topology);
+        if (index == null)
+            return null;
+        return index.lives.get (TopologyIndex.key (host, port));
     }
     /**
      * Метод даёт карту master-master <заменитель,партнёр> для брокеров. где первый master является активизированным
@@ -492,51 +680,25 @@ public class PlatzCard extends ActiveMQConnectionFactory {
      */
     public static Map<TransportConfiguration,TransportConfiguration> findActiveBackups (TransportConfiguration near[],
                                                                  Set<TransportConfiguration> empty, Topology topology) {
-        if (topology == null)
+        TopologyIndex index = TopologyIndex.of (topology);
+        if (index == null)
             return null;
         Map<TransportConfiguration,TransportConfiguration> active = null;
         Iterator<TransportConfiguration> fetcher = empty.iterator ();
+        Map<String,Integer> own = new HashMap<> (near.length * 2);//сколько брокеров своего ЦОД совпадает с host:port
 
-        for (TopologyMemberImpl member : topology.getMembers ()) {
+        for (TransportConfiguration link: near) {
+            own.merge (broker (link), 1, Integer::sum);
+            String backup = TopologyIndex.shift (link, backup_shift);
+            if (backup != null)
+                own.merge (backup, 1, Integer::sum);
+        }
+        for (TransportConfiguration pair[] : index.activated) {
             if (fetcher.hasNext () == false)
                 break;
-            if (member.getBackup () != null)
-                continue;
-
-            String member_host = (String) member.getLive ().getParams ().get (TransportConstants.HOST_PROP_NAME);
-            String member_port_string = (String)member.getLive ().getParams ().get (TransportConstants.PORT_PROP_NAME);
-            int member_port = Integer.parseUnsignedInt (member_port_string);
-
-            boolean bingo = false;
-            for (TransportConfiguration link: near){
-                String link_port_string = link.getParams ().get (TransportConstants.PORT_PROP_NAME).toString ();
-
-                if (member_host.equalsIgnoreCase (link.getParams ().get (TransportConstants.HOST_PROP_NAME).toString ())
-                 && (member_port_string.equals (link_port_string)
-                  || member_port == Integer.parseUnsignedInt (link_port_string) + backup_shift))
-                    continue;
-                bingo = true;
-                break;
-            }
-            if (bingo == false)
-                continue;
-            TransportConfiguration partner = null;
-            bingo = false;
-
-            for (TopologyMemberImpl challenger : topology.getMembers ()){
-                if (member_host.equalsIgnoreCase ((String) challenger.getLive ().getParams ().get (TransportConstants.HOST_PROP_NAME)) == false)
-                    continue;
-                String challenger_port_string = challenger.getLive ().getParams ().get (TransportConstants.PORT_PROP_NAME).toString ();
-
-                if (member_port_string.equals (challenger_port_string))
-                    continue;
-                if (member_port == Integer.parseUnsignedInt (challenger_port_string) + backup_shift) {
-                    bingo = true;
-                    partner = challenger.getLive ();
-                    break;
-                }
-            }
-            if (bingo == false)
+            TransportConfiguration member = pair[0], partner = pair[1];
+            //заменитель не должен совпадать со всеми брокерами своего ЦОД или их резервами
+            if (own.getOrDefault (broker (member), 0) == near.length)
                 continue;
             if (active == null)
                 active = new HashMap<> (empty.size ());
@@ -544,28 +706,37 @@ public class PlatzCard extends ActiveMQConnectionFactory {
             Map<String,Object> params = new HashMap<> ();
             params.putAll (clone.getParams ());
             clone = new TransportConfiguration (clone.getFactoryClassName (), params);
-            clone.getParams ().put (TransportConstants.HOST_PROP_NAME,member.getLive ().getParams ().get (TransportConstants.HOST_PROP_NAME));
-            clone.getParams ().put (TransportConstants.PORT_PROP_NAME,member.getLive ().getParams ().get (TransportConstants.PORT_PROP_NAME));
-            TransportConfiguration stanIn = null;
-
-            if (partner != null) {
-                params = new HashMap<> ();
-                params.putAll (clone.getParams ());
-                stanIn = new TransportConfiguration (clone.getFactoryClassName (), params);
-                stanIn.getParams ().put (TransportConstants.HOST_PROP_NAME, partner.getParams ().get (TransportConstants.HOST_PROP_NAME));
-                stanIn.getParams ().put (TransportConstants.PORT_PROP_NAME, partner.getParams ().get (TransportConstants.PORT_PROP_NAME));
-            }
+            clone.getParams ().put (TransportConstants.HOST_PROP_NAME,member.getParams ().get (TransportConstants.HOST_PROP_NAME));
+            clone.getParams ().put (TransportConstants.PORT_PROP_NAME,member.getParams ().get (TransportConstants.PORT_PROP_NAME));
+
+            params = new HashMap<> ();
+            params.putAll (clone.getParams ());
+            TransportConfiguration stanIn = new TransportConfiguration (clone.getFactoryClassName (), params);
+            stanIn.getParams ().put (TransportConstants.HOST_PROP_NAME, partner.getParams ().get (TransportConstants.HOST_PROP_NAME));
+            stanIn.getParams ().put (TransportConstants.PORT_PROP_NAME, partner.getParams ().get (TransportConstants.PORT_PROP_NAME));
             active.put (clone,stanIn);
         }
         return active;
     }
 
+    /**
+     * Метод получает топологию кластера через временную фабрику по _url_topology.
+     * Фабрика закрывается вместе с соединением (у неё свой ServerLocator с пулами нитей), поэтому возвращается копия топологии
+     * @return топология, либо null
+     * @throws JMSException если ни один брокер кластера недоступен
+     */
+    Topology clusterTopology () throws JMSException {
+        try (ActiveMQConnectionFactory cf = new ActiveMQConnectionFactory (_url_topology);
+             ActiveMQConnection c = (ActiveMQConnection) cf.createConnection ()) {
+            return TopologySnapshot.copy (c.getSessionFactory ().getServerLocator ().getTopology (), this);
+        }
+    }
+
     void preloadTopology (){
         if (topology == null){
             try {
-                ActiveMQConnection c = (ActiveMQConnection) new ActiveMQConnectionFactory (_url_topology).createConnection ();
-                topology = c.getSessionFactory ().getServerLocator ().getTopology ();
-                c.close ();
+                topology = clusterTopology ();
+                saveTopology ();
             } catch (JMSException e) {//ни одного брокера нет, либо с сертификатами непорядок
             }
         }
@@ -586,9 +757,7 @@ public class PlatzCard extends ActiveMQConnectionFactory {
             TransportConfiguration backup = null;
 
             try {
-                ActiveMQConnectionFactory cf2 = new ActiveMQConnectionFactory (true, t);
-                cf2.getServerLocator ().setLocatorConfig (getServerLocator ().getLocatorConfig ());
-                connection = (ActiveMQConnection) cf2.createConnection ();
+                connection = BrokerRegistry.connect (t, getServerLocator ().getLocatorConfig (), true);
             } catch (JMSException be){
                 switch (((ActiveMQException)be.getCause ()).getType ()) {
                     case CONNECTION_TIMEDOUT: /*ActiveMQConnectionTimedOutException*/
@@ -605,8 +774,7 @@ public class PlatzCard extends ActiveMQConnectionFactory {
                 topology = connection.getSessionFactory ().getServerLocator ().getTopology ();
 
             if ((backup = findPartner (t)) != null) try {
-                ActiveMQConnectionFactory bf = new ActiveMQConnectionFactory (false, backup);
-                replica = (ActiveMQConnection) bf.createConnection ();
+                replica = BrokerRegistry.connect (backup, null, false);
             } catch (Exception e) {
             }
             connectors.put (connection, replica);
@@ -621,11 +789,9 @@ public class PlatzCard extends ActiveMQConnectionFactory {
                 ActiveMQConnection master_connection = null, slaver_connection = null;
 
                 try {
-                    ActiveMQConnectionFactory cf2 = new ActiveMQConnectionFactory (true, master);
-                    cf2.getServerLocator ().setLocatorConfig (getServerLocator ().getLocatorConfig ());
-                    master_connection = (ActiveMQConnection) cf2.createConnection ();
+                    master_connection = BrokerRegistry.connect (master, getServerLocator ().getLocatorConfig (), true);
                     if (slaver != null)
-                        slaver_connection = (ActiveMQConnection) new ActiveMQConnectionFactory (false, slaver).createConnection ();
+                        slaver_connection = BrokerRegistry.connect (slaver, null, false);
                 } catch (JMSException be) {
                 }
                 if (master_connection != null)
@@ -635,9 +801,511 @@ public class PlatzCard extends ActiveMQConnectionFactory {
         return connectors;
     }
 
+    /**
+     * Результат опроса одного брокера: соединение к брокеру, соединение к парному брокеру и оценка для выбора
+     */
+    static class Probe {
+        final TransportConfiguration transport;
+        TransportConfiguration partner_transport;//парный брокер, если известен заранее
+        ActiveMQConnection connection, partner;
+        Integer limit;//оценка брокера, null - оценить не удалось
+        int consumers;//консюмеры адреса/очереди на брокере
+        boolean b_consumers;//на парном брокере есть консюмеры адреса
+        int planned;//запланированные на брокер подключения
+        long messages;//сообщения в очереди/адресе на брокере
+        double backlog;//работа на брокере: сообщения с учётом прогноза по скорости
+        boolean counted;//оценка получена по таблице консюмеров, соединения ещё нет
+        double rtt = Double.NaN;//оценка задержки до брокера, мс, NaN - неизвестна
+
+        Probe (TransportConfiguration transport){
+            this.transport = transport;
+        }
+        Probe (ActiveMQConnection connection, ActiveMQConnection partner){
+            this (null);
+            this.connection = connection;
+            this.partner = partner;
+        }
+        void close (){
+            for (Connection c: new Connection[]{connection, partner}) {
+                if (c != null) try {
+                    c.close ();
+                } catch (JMSException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Признак недоступности брокера по исключению, полученному при подключении
+     * @param e исключение при создании соединения
+     * @return true, если брокер недоступен и надо искать реплику
+     */
+    public static boolean unreachable (JMSException e){
+        if (e.getCause () instanceof ActiveMQException == false)
+            return false;
+        switch (((ActiveMQException)e.getCause ()).getType ()) {
+            case CONNECTION_TIMEDOUT: /*ActiveMQConnectionTimedOutException*/
+            case NOT_CONNECTED: /*ActiveMQNotConnectedException*/
+            case DISCONNECTED: /*ActiveMQDisconnectedException*/
+            case REMOTE_DISCONNECT:/*ActiveMQRemoteDisconnectException*/
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Метод параллельно выполняет опрос брокеров, каждый опрос выполняется в своей виртуальной нити.
+     * Опросы, не уложившиеся в срок, исключаются из результата, их соединения закрываются по готовности
+     * @param plan опросы брокеров
+     * @param task действие опроса
+     * @param deadline общий срок окончания опроса, мс
+     * @param owned true - соединения опроса созданы фабрикой и опоздавшие надо закрыть
+     * @return завершившиеся в срок опросы
+     * @throws InterruptedException
+     */
+    List<Probe> probe (List<Probe> plan, UnaryOperator<Probe> task, long deadline, boolean owned)
+            throws InterruptedException {
+        List<CompletableFuture<Probe>> futures = new ArrayList<> (plan.size ());
+
+        for (Probe p: plan)
+            futures.add (CompletableFuture.supplyAsync (() -> task.apply (p), prober));
+
+        long until = Math.min (deadline, System.currentTimeMillis () + brokerTimeout);
+        try {
+            CompletableFuture.allOf (futures.toArray (CompletableFuture[]::new))
+                    .get (Math.max (0, until - System.currentTimeMillis ()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {//брокеры, не ответившие вовремя, в выборе не участвуют
+        }
+        List<Probe> result = new ArrayList<> (plan.size ());
+        for (CompletableFuture<Probe> f: futures) {
+            if (f.isDone () && f.isCompletedExceptionally () == false)
+                result.add (f.join ());
+            else if (owned)
+                f.thenAccept (Probe::close);//опоздавшее соединение закрываем, когда оно всё-таки установится
+        }
+        return result;
+    }
+
+    /**
+     * Метод подключается к брокеру опроса и, если требуется, к его парному брокеру
+     * @param p опрос брокера
+     * @param pair подключаться к парному брокеру
+     * @param chance набор недоступных брокеров, пополняется
+     * @return опрос с установленными соединениями
+     */
+    Probe connect (Probe p, boolean pair, Set<TransportConfiguration> chance){
+        try {
+            p.connection = BrokerRegistry.connect (p.transport, getServerLocator ().getLocatorConfig (), true);
+        } catch (JMSException e) {
+            if (unreachable (e))
+                chance.add (p.transport);//брокер недоступен, надо искать реплику
+            return p;
+        }
+        if (pair) {
+            //надо собирать топологию и резервные подключения
+            if (topology == null)
+                topology = p.connection.getSessionFactory ().getServerLocator ().getTopology ();
+
+            TransportConfiguration live = (p.partner_transport != null)?p.partner_transport:findPartner (p.transport);
+            p.partner_transport = live;
+
+            if (live != null) try {
+                p.partner = BrokerRegistry.connect (live, null, false);
+            } catch (Exception e) {
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Метод оценивает брокер по количеству консюмеров адреса/очереди с учётом парного брокера
+     * и сохраняет оценку в опросе. Состояние адреса берётся из таблицы консюмеров (если она ведётся),
+     * иначе запрашивается у брокеров через соединения опроса
+     * @param p опрос брокера
+     * @param a адрес
+     * @param q очередь
+     * @param def true - указана очередь (address::queue)
+     * @param HA критичность системы
+     * @param compact упаковывать соединения
+     */
+    void evaluate (Probe p, SimpleString a, SimpleString q, boolean def, HALevel HA, boolean compact){
+        ConsumerCounter counter = this.counter;
+        //в таблице консюмеров нет актуального количества сообщений
+        AddressState own = (counter != null && backlogWeight <= 0)?counter.lookup (p.transport):null, partner = null;
+
+        try {
+            if (own == null) {
+                long start = System.nanoTime ();
+                ClientSession session = p.connection.getSessionFactory ().createSession (false, false);
+                BrokerLatency.sample (key (p), System.nanoTime () - start);
+                own = stateQuery.query (session, a, def ? q : null);
+                session.close();
+            }
+        } catch (Exception e) {
+            p.limit = null;
+            return;
+        }
+        if (HA != HALevel.BOOS && compact) {
+            if (counter != null)
+                partner = counter.lookup (p.partner_transport);
+            if (partner == null && p.partner != null) try {
+                ClientSession b_session = p.partner.getSessionFactory ().createSession (false, false);
+                partner = stateQuery.query (b_session, a, null);
+                b_session.close();
+            } catch (Exception e) {
+                //System.out.println (e);
+            }
+        }
+        score (p, own, partner, q, def, HA);
+        p.rtt = BrokerLatency.rtt (key (p));
+        if (backlogWeight > 0) {
+            String key = key (p);
+            p.backlog = Math.max (0, p.messages + ((rateHorizon > 0 && key != null)?rate (key, p.messages) * rateHorizon:0));
+        }
+    }
+
+    /**
+     * Брокер опроса host:port по транспорту, либо по адресу соединения
+     */
+    static String key (Probe p){
+        return (p.transport != null)?broker (p.transport):(p.connection != null)?Rebalancer.remote (p.connection):null;
+    }
+
+    /**
+     * Метод оценивает скорость изменения очереди на брокере по разнице с предыдущим замером (сглаженно)
+     * Положительная скорость - поступление опережает обработку
+     * @param key брокер host:port
+     * @param messages сообщения в очереди сейчас
+     * @return скорость, сообщений в секунду
+     */
+    double rate (String key, long messages){
+        long now = System.currentTimeMillis ();
+        double sample[] = rates.compute (key, (k, s) -> {
+            if (s == null)
+                return new double[]{now, messages, 0};
+            double dt = (now - s[0]) / 1000.0;
+            if (dt <= 0)
+                return s;
+            double r = (messages - s[1]) / dt;
+            return new double[]{now, messages, (s[2] == 0)?r:(s[2] + r) / 2};
+        });
+        return sample[2];
+    }
+
+    /**
+     * Метод вычисляет оценку брокера по состоянию адреса на нём и на парном брокере
+     * @param p опрос брокера
+     * @param own состояние адреса на брокере
+     * @param partner состояние адреса на парном брокере, либо null
+     * @param q очередь
+     * @param def true - указана очередь (address::queue)
+     * @param HA критичность системы
+     */
+    static void score (Probe p, AddressState own, AddressState partner, SimpleString q, boolean def, HALevel HA){
+        int limit = def ? Integer.MAX_VALUE : 0;
+        int consumers = 0;
+        long messages = 0;
+        boolean b_consumers = partner != null && partner.consumers () > 0;
+
+        if (own.exists) {
+            //addressQuery.isAutoCreateQueues ();
+            if (own.defaultMaxConsumers > 0 && def)
+                limit = own.defaultMaxConsumers;
+            if (def) {
+                AddressState.QueueState queue = own.queues.get (q.toString ());
+                if (queue != null) {
+                    if (queue.maxConsumers > 0)
+                        limit = queue.maxConsumers;
+                    limit -= queue.consumers;
+                    consumers += queue.consumers;
+                    messages += queue.messages;
+                }
+            } else {
+                for (AddressState.QueueState queue : own.queues.values ()) {
+                    limit += queue.consumers;
+                    consumers += queue.consumers;
+                    messages += queue.messages;
+                }
+            }
+            if (HA == HALevel.MC && consumers == 1 && def)
+                limit += 2;
+        }
+        if (b_consumers) {//только в режиме compact для MC и BC
+            if (HA == HALevel.MC) {
+                limit = def ? 0 : -1;
+            } else/* if (HA == HALevel.BC) */ {
+                if (def) {
+                    if (limit > 0) {
+                        if (limit == Integer.MAX_VALUE)
+                            limit = Integer.MAX_VALUE / 2;
+                    }
+                } else
+                    limit++;//fixme надо придумать, как ранжировать адреса без очередей
+            }
+        }
+        p.limit = limit;
+        p.consumers = consumers;
+        p.b_consumers = b_consumers;
+        p.messages = messages;
+    }
+
+    /**
+     * Метод оценивает брокеры только по таблице консюмеров, без подключения к брокерам
+     * @param a адрес
+     * @param q очередь
+     * @param def true - указана очередь (address::queue)
+     * @param HA критичность системы
+     * @param compact упаковывать соединения
+     * @return опросы без соединений, либо null, если таблица есть не для всех брокеров
+     */
+    List<Probe> lookup (SimpleString a, SimpleString q, boolean def, HALevel HA, boolean compact){
+        ConsumerCounter counter = this.counter;
+        TransportConfiguration transport[] = getStaticConnectors ();
+        List<Probe> probes = new ArrayList<> (transport.length);
+        boolean pair = HA != HALevel.BOOS && compact;
+
+        if (counter == null || a == null || (pair && topology == null) || backlogWeight > 0)
+            return null;
+        for (TransportConfiguration t : transport) {
+            AddressState own = counter.lookup (t), partner = null;
+            Probe p = new Probe (t);
+
+            if (own == null)
+                return null;//брокер недоступен, либо подписка ещё не оформлена
+            if (pair && (p.partner_transport = findPartner (t)) != null) {
+                counter.watch (p.partner_transport);
+                if ((partner = counter.lookup (p.partner_transport)) == null)
+                    return null;
+            }
+            p.counted = true;
+            score (p, own, partner, q, def, HA);
+            p.rtt = BrokerLatency.rtt (broker (t));
+            probes.add (p);
+        }
+        return probes;
+    }
+
+
+    /**
+     * Метод учитывает в оценке брокера ещё одного запланированного на нём консюмера так же,
+     * как это сделал бы повторный опрос брокера после подключения консюмера
+     * @param p опрос выбранного брокера
+     * @param def true - указана очередь (address::queue)
+     * @param HA критичность системы
+     * @param weight сколько сообщений очереди приравнивается к одному консюмеру, 0 - не учитывать
+     */
+    static void reserve (Probe p, boolean def, HALevel HA, double weight){
+        int limit = (p.limit != null)?p.limit:0;
+
+        p.planned++;
+        if (weight > 0)
+            p.backlog = Math.max (0, p.backlog - weight);//консюмер забирает свою долю очереди
+        if (p.b_consumers && HA == HALevel.MC)
+            return;//брокер исключён из-за консюмеров на парном брокере
+        if (def) {
+            if (unbounded (limit)) {//ограничения на количество консюмеров нет, оценку уменьшает planned в choose
+                p.consumers++;
+                return;
+            }
+            if (HA == HALevel.MC && p.consumers == 1)
+                limit -= 2;//второй консюмер уже есть
+            limit--;
+            if (HA == HALevel.MC && p.consumers == 0)
+                limit += 2;//консюмер одинокий, нужен второй
+        }
+        else
+            limit++;
+        p.consumers++;
+        p.limit = limit;
+    }
+
+    /**
+     * Признак оценки брокера без ограничения количества консюмеров очереди
+     */
+    static boolean unbounded (int limit){
+        return limit == Integer.MAX_VALUE || limit == Integer.MAX_VALUE / 2;
+    }
+
+    /**
+     * Метод выбирает опрос брокера в соответствии с оценками брокеров. Если есть несколько брокеров
+     * с равной оценкой - выбирается ближайший из них (по замерам задержки), иначе случайный.
+     * При учёте очереди сообщений (weight > 0) в режимах без упаковки очередь каждого брокера пересчитывается
+     * в консюмеры (backlog/weight) и смещает оценку в пользу брокера с большей очередью, при упаковке
+     * очередь только разрешает равенство оценок. Правила исключения брокеров (HALevel, maxConsumers) не меняются.
+     * @param probes опросы брокеров
+     * @param def true - указана очередь (address::queue)
+     * @param compact упаковывать соединения
+     * @param weight сколько сообщений очереди приравнивается к одному консюмеру, 0 - не учитывать
+     * @return выбранный опрос, либо null
+     */
+    static Probe choose (List<Probe> probes, boolean def, boolean compact, double weight){
+        return choose (probes, def, compact, weight, 0);
+    }
+
+    /**
+     * Метод выбирает опрос брокера с учётом задержки до брокеров (BrokerLatency).
+     * В режимах без упаковки задержка пересчитывается в консюмеры (rtt/penalty) и смещает оценку
+     * в пользу ближнего брокера. Среди брокеров с равной оценкой выбирается ближайший,
+     * случайный выбор остаётся только для брокеров без замеров задержки.
+     * @param penalty сколько мс задержки приравнивается к одному консюмеру, 0 - только выбор ближайшего среди равных
+     */
+    static Probe choose (List<Probe> probes, boolean def, boolean compact, double weight, double penalty){
+        Probe chosen = null;
+        ArrayList<Probe> order = new ArrayList<> (probes.size ());
+        boolean least = compact == def;//выбирается наименьшая оценка, иначе наибольшая
+        double best = 0;
+
+        for (Probe link: probes){
+            if (link.connection == null && link.counted == false)
+                continue;
+            int value = (link.limit != null)?link.limit:0;
+            if ((value > 0 || def == false) == false || (least == false && value < 0))
+                continue;
+            double rank = value;
+            if (def && unbounded (value))
+                rank -= link.planned;//запланированные консюмеры занимают место, как у брокеров с ограничением
+            if (weight > 0 && compact == false)
+                rank += (least ? -link.backlog : link.backlog) / weight;
+            if (penalty > 0 && compact == false && Double.isNaN (link.rtt) == false)
+                rank += (least ? link.rtt : -link.rtt) / penalty;
+            if (chosen == null || (least ? rank < best : rank > best)){
+                order.clear ();
+                chosen = link;
+                best = rank;
+            }
+            if (rank == best)
+                order.add (link);
+        }
+        if (order.size () > 1 && weight > 0 && compact){
+            double backlog = 0;
+            for (Probe link: order)
+                backlog = Math.max (backlog, link.backlog);
+            final double most = backlog;
+            order.removeIf (link -> link.backlog < most);
+            chosen = order.get (0);
+        }
+        if (order.size () > 1){
+            //ближайший брокер, брокеры без замеров - в последнюю очередь
+            double nearest = Double.NaN;
+            for (Probe link: order)
+                if (Double.isNaN (link.rtt) == false && (Double.isNaN (nearest) || link.rtt < nearest))
+                    nearest = link.rtt;
+            if (Double.isNaN (nearest) == false) {
+                final double rtt = nearest;
+                order.removeIf (link -> link.rtt != rtt);
+            }
+            chosen = order.get (new Random ().nextInt (order.size ()));
+        }
+        return chosen;
+    }
+
+    /**
+     * Метод устанавливает соединения ко всем брокерам из url фабрики (а при необходимости - к парным брокерам и
+     * активизированным резервным брокерам) и оценивает их. Подключение к брокерам и их оценка выполняются
+     * параллельно, общее время ограничено probeTimeout, время ожидания одного брокера - brokerTimeout.
+     * Брокеры, не ответившие в срок, в результат не попадают.
+     * Если ведётся таблица консюмеров и в ней есть все брокеры, оценка выполняется по таблице без подключений,
+     * тогда соединение надо устанавливать только к выбранному брокеру.
+     * @param connectors карта master-master пар брокеров, ключ - брокер своего ЦОД, либо null
+     * @param a адрес, либо null
+     * @param q очередь
+     * @param def true - указана очередь (address::queue)
+     * @param HA критичность системы
+     * @param compact упаковывать соединения
+     * @param lookup разрешить оценку по таблице консюмеров
+     * @return опросы брокеров, если connectors=null - соединения опросов надо закрывать
+     * @throws InterruptedException
+     */
+    List<Probe> survey (Map<Connection,Connection> connectors,
+                        SimpleString a, SimpleString q, boolean def, HALevel HA, boolean compact, boolean lookup)
+            throws InterruptedException {
+        return survey (connectors, a, q, def, HA, compact, lookup, 0);
+    }
+
+    /**
+     * Опрос брокеров, см. survey. При k > 0 опрашиваются только k случайных брокеров из url фабрики
+     * (доступные по BrokerHealth в первую очередь), правила HALevel/compact применяются к ним без изменений
+     * @param k количество опрашиваемых брокеров, 0 - все брокеры
+     */
+    List<Probe> survey (Map<Connection,Connection> connectors,
+                        SimpleString a, SimpleString q, boolean def, HALevel HA, boolean compact, boolean lookup, int k)
+            throws InterruptedException {
+        if (connectors == null && lookup) {
+            List<Probe> probes = lookup (a, q, def, HA, compact);
+            if (probes != null)
+                return probes;
+        }
+        TransportConfiguration transport[] = getStaticConnectors ();
+        if (k > 0 && k < transport.length)
+            transport = sample (transport, k);
+        List<Probe> probes = new ArrayList<> (transport.length);
+        Set<TransportConfiguration> chance = ConcurrentHashMap.newKeySet ();
+        long deadline = System.currentTimeMillis () + probeTimeout;
+        final boolean pair = HA != HALevel.BOOS && compact;
+        UnaryOperator<Probe> evaluate = p -> {
+            if (p.connection != null && a != null)
+                evaluate (p, a, q, def, HA, compact);
+            return p;
+        };
+
+        if (connectors == null) {
+            List<Probe> plan = new ArrayList<> (transport.length);
+            for (TransportConfiguration t : transport)
+                plan.add (new Probe (t));
+            probes.addAll (probe (plan, p -> evaluate.apply (connect (p, pair, chance)), deadline, true));
+
+            if (chance.isEmpty () == false) {
+                if (topology == null){
+                    for (Probe p: probes)
+                        if (p.connection != null) {
+                            topology = p.connection.getSessionFactory ().getServerLocator ().getTopology ();
+                            break;
+                        }
+                    if (topology == null)
+                        preloadTopology ();
+                }
+                Map <TransportConfiguration,TransportConfiguration> failover = findActiveBackups (transport, chance, topology);
+                if (failover != null) {
+                    plan = new ArrayList<> (failover.size ());
+                    for (Map.Entry<TransportConfiguration, TransportConfiguration> entry : failover.entrySet ()) {
+                        Probe p = new Probe (entry.getKey ());
+                        p.partner_transport = entry.getValue ();
+                        plan.add (p);
+                    }
+                    probes.addAll (probe (plan, p -> evaluate.apply (connect (p, pair && p.partner_transport != null,
+                            ConcurrentHashMap.newKeySet ())), deadline, true));
+                }
+            }
+        }
+        else {
+            List<Probe> plan = new ArrayList<> (connectors.size ());
+            for (Map.Entry<Connection,Connection> link: connectors.entrySet ())
+                plan.add (new Probe ((ActiveMQConnection) link.getKey (), (ActiveMQConnection) link.getValue ()));
+            //соединения принадлежат вызывающему, поэтому опоздавшие опросы просто не учитываются
+            probes.addAll (probe (plan, evaluate, deadline, false));
+        }
+        return probes;
+    }
+
+    /**
+     * Метод выбирает k случайных брокеров, недоступные по BrokerHealth брокеры выбираются в последнюю очередь
+     * @param transport брокеры
+     * @param k количество брокеров
+     * @return выборка брокеров
+     */
+    static TransportConfiguration[] sample (TransportConfiguration transport[], int k){
+        List<TransportConfiguration> shuffled = new ArrayList<> (Arrays.asList (transport));
+        Collections.shuffle (shuffled, ThreadLocalRandom.current ());
+        shuffled.sort (Comparator.comparing (t -> BrokerHealth.state (t) != BrokerHealth.State.CLOSED));
+        return shuffled.subList (0, k).toArray (new TransportConfiguration[0]);
+    }
+
     /**
      * Метод выбирает из уже установленных соединений одно, удовлетворяющее требованиям "расстановки" соединений
-     * в соответствие с критичностью клиента и кластера
+     * в соответствие с критичностью клиента и кластера.
+     * Подключение к брокерам и их оценка выполняются параллельно, общее время ограничено probeTimeout,
+     * время ожидания одного брокера - brokerTimeout. Брокеры, не ответившие в срок, в выборе не участвуют.
      * @param connectors карта master-master пар брокеров, ключ - брокер своего ЦОД, либо null
      * @param address адрес для проверки количества консюмеров
      * @param HA критичность системы
@@ -649,13 +1317,9 @@ public class PlatzCard extends ActiveMQConnectionFactory {
     public Connection getConsumerConnection (Map<Connection,Connection> connectors,
                                                     String address, HALevel HA, boolean compact)
             throws InterruptedException {
-        TransportConfiguration transport[] = getStaticConnectors ();
-        Map<ActiveMQConnection, Integer> connections = new HashMap<> ();
         String address_queue[];
-        boolean free_connections = connectors == null;
         SimpleString a = null, q = null;
         boolean def = false;//true - наличие :: в адресе
-        Set<TransportConfiguration> chance = new HashSet<>();
 
         //торопится не надо, иначе одновременные действия будут приводить к неравномерности
         Thread.sleep (new Random ().nextInt (1000));
@@ -670,211 +1334,135 @@ public class PlatzCard extends ActiveMQConnectionFactory {
         else
             compact = false;
 
-        if (free_connections) {
-            for (TransportConfiguration t : transport) {
-                //Object host = t.getParams().get(TransportConstants.HOST_PROP_NAME);
-                //Object port = t.getParams().get(TransportConstants.PORT_PROP_NAME);
-                ActiveMQConnection connection;
-                ActiveMQConnection backup = null;
-
-                try {
-                    ActiveMQConnectionFactory cf2 = new ActiveMQConnectionFactory (true, t);
-                    cf2.getServerLocator ().setLocatorConfig (getServerLocator ().getLocatorConfig ());
-                    connection = (ActiveMQConnection) cf2.createConnection ();
-                    connections.put (connection, null);
-                } catch (Exception e) {
-                    switch (((ActiveMQException)e.getCause ()).getType ()) {
-                        case CONNECTION_TIMEDOUT: /*ActiveMQConnectionTimedOutException*/
-                        case NOT_CONNECTED: /*ActiveMQNotConnectedException*/
-                        case DISCONNECTED: /*ActiveMQDisconnectedException*/
-                        case REMOTE_DISCONNECT:/*ActiveMQRemoteDisconnectException*/
-                            chance.add (t);//брокер недоступен, надо искать реплику
-                        default:
-                            continue;
-                    }
-                }
-                if (HA != HALevel.BOOS && compact) {
-                    //надо собирать топологию и резервные подключения
-                    if (topology == null)
-                        topology = connection.getSessionFactory ().getServerLocator ().getTopology ();
-
-                    if (connectors == null)
-                        connectors = new HashMap<>(transport.length * 2);
+        int k = (connectors == null)?sample:0;
+        List<Probe> probes = survey (connectors, a, q, def, HA, compact, true, k);
+        Probe chosen = choose (probes, def, compact, backlogWeight, latencyPenalty);
 
-                    TransportConfiguration live = findPartner (t);
+        if (chosen == null && k > 0) {
+            //среди выбранных брокеров подходящего нет, опрашиваем все брокеры
+            for (Probe p : probes)
+                p.close ();
+            probes = survey (connectors, a, q, def, HA, compact, true);
+            chosen = choose (probes, def, compact, backlogWeight, latencyPenalty);
+        }
+        if (chosen != null && chosen.connection == null
+                && connect (chosen, false, ConcurrentHashMap.newKeySet ()).connection == null) {
+            //брокер из таблицы консюмеров недоступен, опрашиваем все брокеры
+            ConsumerCounter counter = this.counter;
+            if (counter != null)
+                counter.drop (chosen.transport);
+            probes = survey (connectors, a, q, def, HA, compact, false);
+            chosen = choose (probes, def, compact, backlogWeight, latencyPenalty);
+        }
+        ActiveMQConnection connection = (chosen != null)?chosen.connection:null;
 
-                    if (live != null) try {
-                        backup = (ActiveMQConnection) new ActiveMQConnectionFactory (false, live).createConnection ();
-                    } catch (Exception e) {
-                    }
-                    connectors.put (connection, backup);
-                }
-            }
-            if (chance.isEmpty () == false) {
-                if (topology == null){
-                    if (connections.isEmpty () == false)
-                        topology = ((ActiveMQConnection)connections.keySet ().toArray ()[0]).getSessionFactory ()
-                                .getServerLocator ().getTopology ();
-                    else
-                        preloadTopology ();
-                }
-                Map <TransportConfiguration,TransportConfiguration> failover = findActiveBackups (transport, chance, topology);
-                if (failover != null) {
-                    for (Map.Entry<TransportConfiguration, TransportConfiguration> entry : failover.entrySet ()) {
-                        TransportConfiguration master = entry.getKey();
-                        TransportConfiguration slaver = entry.getValue();
-                        ActiveMQConnection master_connection = null, slaver_connection = null;
-
-                        try {
-                            ActiveMQConnectionFactory cf2 = new ActiveMQConnectionFactory (true, master);
-                            cf2.getServerLocator ().setLocatorConfig (getServerLocator ().getLocatorConfig ());
-                            master_connection = (ActiveMQConnection) cf2.createConnection ();
-
-                            if (slaver != null && HA != HALevel.BOOS && compact)
-                                slaver_connection = (ActiveMQConnection) new ActiveMQConnectionFactory (false, slaver).createConnection ();
-                        } catch (JMSException be) {
-                        }
-                        if (master_connection != null) {
-                            connections.put (master_connection, null);
-                            if (slaver_connection != null) {
-                                if (connectors == null)
-                                    connectors = new HashMap<> (failover.size ());
-                                connectors.put (master_connection, slaver_connection);
-                            }
-                        }
-                    }
-                }
+        if (connectors == null) {
+            for (Probe p : probes) {
+                if (p == chosen)
+                    p.connection = null;//выбранное соединение отдаём вызывающему
+                p.close ();
             }
         }
-        else
-            for (Connection c: connectors.keySet ())
-                connections.put ((ActiveMQConnection)c,null);
-        if (address != null && address.isEmpty () == false) {
-            for (Map.Entry<ActiveMQConnection, Integer> link : connections.entrySet ()) {
-                try {
-                    ActiveMQConnection connection = link.getKey ();
-                    ClientSession session = connection.getSessionFactory ().createSession (false, false);
-                    ClientSession.QueueQuery queue = null;
-                    ClientSession.AddressQuery addressQuery = session.addressQuery (a);
-                    int limit = def ? Integer.MAX_VALUE : 0;
-                    boolean b_consumers = false;
-
-                    if (HA != HALevel.BOOS && compact) {
-                        ActiveMQConnection b_connection = (ActiveMQConnection) connectors.get (connection);
-
-                        if (b_connection != null) try {
-                            ClientSession b_session = b_connection.getSessionFactory ().createSession (false, false);
-                            ClientSession.AddressQuery b_addressQuery = b_session.addressQuery (a);
-
-                            for (SimpleString s : b_addressQuery.getQueueNames ()) {
-                                ClientSession.QueueQuery b_queue = b_session.queueQuery (s);
-
-                                if (b_queue != null && b_queue.isExists ()
-                                        && (b_consumers = (b_queue.getConsumerCount () > 0)))
-                                    break;
-                            }
-                            b_session.close();
-                        } catch (Exception e) {
-                            //System.out.println (e);
-                        }
-                    }
+        return connection;
+    }
 
-                    if (addressQuery != null && addressQuery.isExists ()) {
-                        int consumers = 0;
-                        //addressQuery.isAutoCreateQueues ();
-                        if (addressQuery.getDefaultMaxConsumers () > 0 && def)
-                            limit = addressQuery.getDefaultMaxConsumers ();
-                        for (SimpleString s : addressQuery.getQueueNames ()) {
-                            if (def) {
-                                if (s.equals (q)) {
-                                    if ((queue = session.queueQuery (s)) != null && queue.isExists ()) {
-                                        if (queue.getMaxConsumers() > 0)
-                                            limit = queue.getMaxConsumers ();
-                                        limit -= queue.getConsumerCount ();
-                                        consumers += queue.getConsumerCount ();
-                                        //queue.getMessageCount ();
-                                    }
-                                    break;
-                                }
-                            } else {
-                                if ((queue = session.queueQuery (s)) != null && queue.isExists ()) {
-                                    limit += queue.getConsumerCount ();
-                                    consumers += queue.getConsumerCount ();
-                                }
-                            }
-                        }
-                        if (HA == HALevel.MC && consumers == 1 && def)
-                            limit += 2;
-                    }
-                    if (b_consumers) {//только в режиме compact для MC и BC
-                        if (HA == HALevel.MC) {
-                            limit = def ? 0 : -1;
-                        } else/* if (HA == HALevel.BC) */ {
-                            if (def) {
-                                if (limit > 0) {
-                                    if (limit == Integer.MAX_VALUE)
-                                        limit = Integer.MAX_VALUE / 2;
-                                }
-                            } else
-                                limit++;//fixme надо придумать, как ранжировать адреса без очередей
-                        }
-                    }
-                    link.setValue(limit);
-                    session.close();
-                } catch (Exception e) {
-                }
-            }
+    /**
+     * Метод создаёт сразу n соединений для консюмеров адреса фабрики за один опрос брокеров.
+     * Распределение планируется с учётом правил HA и compact, при этом каждый запланированный консюмер
+     * учитывается в оценке брокера так, как если бы он уже был подключён. Случайные задержки не используются.
+     * В режиме sticky все соединения повторяют выбор первого.
+     * @param n количество соединений
+     * @return список соединений, может быть короче n, если подходящих брокеров не нашлось
+     * @throws JMSException при невозможности подключиться к кластеру
+     */
+    public List<Connection> createConnections (int n) throws JMSException {
+        List<Connection> result = new ArrayList<> (n);
+
+        if (sticky) {
+            for (int i = 0; i < n; i++)
+                result.add (createConnection ());
+            return result;
         }
-        ActiveMQConnection connection = null;
-        ArrayList<ActiveMQConnection> order = new ArrayList<> (transport.length);
-
-        if (compact == def){
-            int     limit = Integer.MAX_VALUE;
-            for (Map.Entry<ActiveMQConnection, Integer> link: connections.entrySet ()){
-                int value = (link.getValue () != null)?link.getValue ():0;
-                ActiveMQConnection key = link.getKey ();
-                if ((value > 0 || def == false) && limit >= value){
-                    if (limit != value)
-                        order.clear ();
-                    order.add (key);
-                    connection = key;
-                    limit = value;
-                }
-            }
+        try {
+            result.addAll (createConsumerConnections (address, level, compact, n));
+        } catch (InterruptedException e) {
+            throw new JMSException ("NOT_CONNECTED");
         }
-        else{
-            int     limit = 0;
-            for (Map.Entry<ActiveMQConnection, Integer> link: connections.entrySet ()){
-                if ((link.getValue () > 0 || def == false) && limit <= link.getValue ()){
-                    if (limit != link.getValue ())
-                        order.clear ();
-                    order.add (link.getKey ());
-                    connection = link.getKey ();
-                    limit = link.getValue ();
-                }
-            }
+        if (result.isEmpty () && n > 0)
+            throw new JMSException ("NOT_CONNECTED");
+        if (leader == null && result.isEmpty () == false)
+            leader = (ServerLocatorImpl) ((ActiveMQConnection)result.get (0)).getSessionFactory ().getServerLocator ();
+        Rebalancer rebalancer = this.rebalancer;
+        if (rebalancer != null)
+            result.forEach (rebalancer::issue);
+        return result;
+    }
+
+    /**
+     * Метод создаёт n соединений для консюмеров адреса за один опрос брокеров, см. createConsumerConnection
+     * @param address адрес/очередь
+     * @param HA критичность подключаемого клиента
+     * @param compact выбирать брокер с максимальным/минимальным количество установленных подключений
+     * @param n количество соединений
+     * @return список соединений, может быть короче n, если подходящих брокеров не нашлось
+     * @throws InterruptedException
+     */
+    public List<Connection> createConsumerConnections (String address, HALevel HA, boolean compact, int n)
+            throws InterruptedException {
+        String address_queue[];
+        SimpleString a = null, q = null;
+        boolean def = false;//true - наличие :: в адресе
+        List<Connection> result = new ArrayList<> (n);
+
+        if (address != null && address.isEmpty () == false) {
+            if ((address_queue = address.split ("::")) != null && address_queue.length > 0) {
+                a = new SimpleString (address_queue[0]);//адрес
+                q = (def = (address_queue.length > 1)) ? new SimpleString (address_queue[1]) : a;//очередь
+            } else
+                return result;
         }
-        if (order.size () > 1){
-            connection = order.get (new Random ().nextInt (order.size ()));
+        else
+            compact = false;
+
+        List<Probe> probes = survey (null, a, q, def, HA, compact, true);
+        //планируем все подключения по оценкам одного опроса
+        for (int i = 0; i < n; i++) {
+            Probe chosen = choose (probes, def, compact, backlogWeight, latencyPenalty);
+            if (chosen == null)
+                break;//подходящих брокеров больше нет
+            reserve (chosen, def, HA, backlogWeight);
         }
-        if (free_connections) {
-            for (ActiveMQConnection c : connections.keySet ())
-                if (c.equals(connection) == false) {
-                    try {
-                        c.close();
-                    } catch (JMSException e) {
-                    }
-                }
-            if (connectors != null) {
-                for (Connection link: connectors.values ()){
+        //первое соединение к брокеру, если оно есть после опроса, отдаём, остальные создаём параллельно
+        List<CompletableFuture<Connection>> extra = new ArrayList<> (n);
+        for (Probe p : probes) {
+            int planned = p.planned;
+            if (planned == 0)
+                continue;
+            if (p.connection != null) {
+                result.add (p.connection);
+                p.connection = null;
+                planned--;
+            }
+            for (int i = 0; i < planned; i++)
+                extra.add (CompletableFuture.supplyAsync (() -> {
                     try {
-                        link.close ();
+                        return (Connection) BrokerRegistry.connect (p.transport, getServerLocator ().getLocatorConfig (), true);
                     } catch (JMSException e) {
+                        return null;
                     }
-                }
+                }, prober));
+        }
+        for (Probe p : probes)
+            p.close ();
+        for (CompletableFuture<Connection> f : extra) {
+            try {
+                Connection c = f.get ();
+                if (c != null)
+                    result.add (c);
+            } catch (ExecutionException e) {
             }
         }
-        return connection;
+        return result;
     }
 
     /**
@@ -901,8 +1489,9 @@ public class PlatzCard extends ActiveMQConnectionFactory {
         Set<MessageConsumer> consumers = new HashSet<> (12);
         int count = (args.length>2)?Integer.parseUnsignedInt (args[2]):1;
 
-        for (int i = 0; i < count; i++) {
-            ActiveMQConnection c = (ActiveMQConnection) cf.createConnection ();
+        //все подключения размещаются за один опрос брокеров
+        for (Connection _c: cf.createConnections (count)) {
+            ActiveMQConnection c = (ActiveMQConnection) _c;
             if (c == null)
                 continue;
             //splitConnection (c,1000);
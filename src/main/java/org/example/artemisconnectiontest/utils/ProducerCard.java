@@ -0,0 +1,132 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.apache.activemq.artemis.api.core.SimpleString;
+import org.apache.activemq.artemis.jms.client.ActiveMQConnection;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Фабрика соединений для отправителей с выбором брокера по наличию консюмеров и глубине очереди адреса.
+ * Отправитель подключается к брокеру, где у адреса есть консюмеры и меньше всего сообщений на одного консюмера,
+ * чтобы сообщения не оставались на брокерах без консюмеров.
+ * level (MC|BC|BOOS) учитывает парные брокеры (findPartner)
+ *      MC, BC - если консюмеров нет ни на одном брокере, выбираются брокеры, у парных брокеров которых консюмеры есть
+ *      BOOS - парные брокеры не проверяются
+ * rotate - соединения выдаются по очереди на все брокеры с консюмерами, вместо выбора наименее загруженного
+ *
+ *         ProducerCard cf = new ProducerCard (url, "address::queue");
+ *         Connection connection = cf.createConnection ();
+ */
+public class ProducerCard extends PlatzCard {
+    //выдавать соединения по очереди на все подходящие брокеры
+    boolean rotate; public boolean getRotate (){return rotate;} public void setRotate (boolean r){rotate = r;}
+    private final AtomicInteger turn = new AtomicInteger ();
+
+    /**
+     * @param url указатель на подключение к своему ЦОД
+     * @param address адрес/очередь, в которую отправляются сообщения
+     */
+    public ProducerCard (String url, String address){
+        this (url, url, address, HALevel.BOOS);
+    }
+    /**
+     * @param url указатель на подключение к своему ЦОД
+     * @param url_topology указатель на все брокеры кластера для получения топологии в случае упавшего своего ЦОД
+     * @param address адрес/очередь, в которую отправляются сообщения
+     * @param level учёт консюмеров на парных брокерах
+     */
+    public ProducerCard (String url, String url_topology, String address, HALevel level){
+        super (url, url_topology, address, level, false);
+    }
+
+    @Override
+    public Connection createConnection () throws JMSException {
+        try {
+            Connection c = createProducerConnection (address, level);
+            if (c == null)
+                throw new JMSException ("NOT_CONNECTED");
+            return c;
+        } catch (InterruptedException e) {
+            throw new JMSException ("NOT_CONNECTED");
+        }
+    }
+
+    /**
+     * Метод создаёт соединение для отправки в адрес/очередь к брокеру, где сообщения будут обработаны
+     * @param address адрес/очередь
+     * @param HA учёт консюмеров на парных брокерах
+     * @return соединение, либо null, если нет доступных брокеров
+     * @throws InterruptedException
+     */
+    public Connection createProducerConnection (String address, HALevel HA) throws InterruptedException {
+        String address_queue[];
+        SimpleString a = null, q = null;
+        boolean def = false;//true - наличие :: в адресе
+
+        if (address != null && address.isEmpty () == false) {
+            if ((address_queue = address.split ("::")) != null && address_queue.length > 0) {
+                a = new SimpleString (address_queue[0]);//адрес
+                q = (def = (address_queue.length > 1)) ? new SimpleString (address_queue[1]) : a;//очередь
+            } else
+                return null;
+        }
+        //compact=true нужен только для опроса парных брокеров
+        List<Probe> probes = survey (null, a, q, def, HA, HA != HALevel.BOOS, false);
+        Probe chosen = select (probes, HA);
+        ActiveMQConnection connection = (chosen != null)?chosen.connection:null;
+
+        for (Probe p : probes) {
+            if (p == chosen)
+                p.connection = null;//выбранное соединение отдаём вызывающему
+            p.close ();
+        }
+        return connection;
+    }
+
+    /**
+     * Метод выбирает брокер для отправителя: сначала брокеры с консюмерами, затем (для MC, BC) брокеры,
+     * у парных брокеров которых есть консюмеры, затем любые доступные брокеры.
+     * Среди брокеров выбирается наименьшая очередь на одного консюмера, либо следующий по очереди при rotate
+     * @param probes опросы брокеров
+     * @param HA учёт консюмеров на парных брокерах
+     * @return выбранный опрос, либо null
+     */
+    Probe select (List<Probe> probes, HALevel HA){
+        List<Probe> served = new ArrayList<> (), partnered = new ArrayList<> (), rest = new ArrayList<> ();
+
+        for (Probe p : probes) {
+            if (p.connection == null)
+                continue;
+            if (p.limit != null && p.consumers > 0)
+                served.add (p);
+            else if (p.b_consumers)
+                partnered.add (p);
+            else
+                rest.add (p);
+        }
+        List<Probe> tier = (served.isEmpty () == false)?served
+                :((HA != HALevel.BOOS && partnered.isEmpty () == false)?partnered:rest);
+
+        if (tier.isEmpty ())
+            return null;
+        if (rotate) {
+            tier.sort (Comparator.comparing (p -> broker (p.transport)));
+            return tier.get (Math.floorMod (turn.getAndIncrement (), tier.size ()));
+        }
+        ArrayList<Probe> order = new ArrayList<> (tier.size ());
+        double best = Double.MAX_VALUE;
+        for (Probe p : tier) {
+            double depth = (double) p.messages / Math.max (1, p.consumers);
+            if (depth < best) {
+                order.clear ();
+                best = depth;
+            }
+            if (depth == best)
+                order.add (p);
+        }
+        return order.get (new Random ().nextInt (order.size ()));
+    }
+}
@@ -0,0 +1,200 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.apache.activemq.artemis.api.core.SimpleString;
+import org.apache.activemq.artemis.api.core.TransportConfiguration;
+import org.apache.activemq.artemis.api.core.client.ClusterTopologyListener;
+import org.apache.activemq.artemis.api.core.client.ServerLocator;
+import org.apache.activemq.artemis.api.core.client.TopologyMember;
+import org.apache.activemq.artemis.core.client.impl.ServerLocatorImpl;
+import org.apache.activemq.artemis.jms.client.ActiveMQConnection;
+import org.apache.activemq.artemis.jms.client.ActiveMQConnectionFactory;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Фоновый перераспределитель консюмеров фабрики PlatzCard.
+ * Держит постоянное подключение к кластеру для получения изменений топологии (топология фабрики обновляется),
+ * периодически и при изменении топологии сравнивает фактическое размещение выданных фабрикой соединений
+ * с тем, что выбрала бы фабрика сейчас, и переносит не более maxMigrations консюмеров за цикл.
+ * Перенос выполняется по схеме "сначала подключить, потом отключить": открывается новое соединение,
+ * приложение переносит на него консюмер (PlatzCard.Migrator), после чего старое соединение закрывается.
+ * Переносятся:
+ *  - консюмеры на брокерах, которые не участвуют в выборе (например, остались на резервном брокере после failback);
+ *  - для compact=false - консюмеры с самых загруженных брокеров на наименее загруженные, если разница больше одного.
+ */
+class Rebalancer implements AutoCloseable {
+    final PlatzCard factory;
+    final PlatzCard.Migrator migrator;
+    final int maxMigrations;
+    final Set<ActiveMQConnection> issued = ConcurrentHashMap.newKeySet ();//выданные фабрикой соединения
+    final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor (r -> {
+        Thread t = new Thread (r, "PlatzCard-rebalancer");
+        t.setDaemon (true);
+        return t;
+    });
+    ActiveMQConnectionFactory watchFactory;//фабрика подключения watch
+    ActiveMQConnection watch;//подключение для получения изменений топологии
+
+    Rebalancer (PlatzCard factory, PlatzCard.Migrator migrator, long period, int maxMigrations){
+        this.factory = factory;
+        this.migrator = migrator;
+        this.maxMigrations = maxMigrations;
+        timer.scheduleWithFixedDelay (this::rebalance, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Учитывает соединение, выданное фабрикой
+     */
+    void issue (Connection c){
+        if (c != null)
+            issued.add ((ActiveMQConnection) c);
+    }
+
+    /**
+     * Подключение к кластеру для получения изменений топологии. Выполняется только в нити timer
+     */
+    void watch (){
+        if (watch != null && watch.getSessionFactory ().isClosed () == false)
+            return;
+        unwatch ();
+        try {
+            watchFactory = new ActiveMQConnectionFactory (factory._url_topology);
+            watch = (ActiveMQConnection) watchFactory.createConnection ();
+            ServerLocator locator = watch.getSessionFactory ().getServerLocator ();
+            locator.addClusterTopologyListener (new ClusterTopologyListener () {
+                @Override
+                public void nodeUP (TopologyMember member, boolean last){
+                    if (last)
+                        timer.execute (Rebalancer.this::rebalance);
+                }
+                @Override
+                public void nodeDown (long eventUID, String nodeID){
+                    timer.execute (Rebalancer.this::rebalance);
+                }
+            });
+            factory.refreshTopology (((ServerLocatorImpl) locator).getTopology ());
+        } catch (JMSException e) {//попробуем в следующем цикле
+            unwatch ();
+        }
+    }
+
+    /**
+     * Закрытие подключения watch и его фабрики (фабрика держит свой ServerLocator с пулами нитей)
+     */
+    void unwatch (){
+        if (watch != null) try {
+            watch.close ();
+        } catch (JMSException e) {
+        }
+        if (watchFactory != null)
+            watchFactory.close ();
+        watch = null;
+        watchFactory = null;
+    }
+
+    /**
+     * Цикл сравнения и переноса консюмеров. Выполняется только в нити timer
+     */
+    void rebalance (){
+        watch ();
+        issued.removeIf (c -> c.getSessionFactory ().isClosed ());
+        if (issued.isEmpty () || factory.address == null || factory.address.isEmpty ())
+            return;
+
+        String address_queue[] = factory.address.split ("::");
+        if (address_queue.length == 0)
+            return;
+        SimpleString a = new SimpleString (address_queue[0]);
+        boolean def = address_queue.length > 1;
+        SimpleString q = def ? new SimpleString (address_queue[1]) : a;
+        List<PlatzCard.Probe> probes;
+
+        try {
+            probes = factory.survey (null, a, q, def, factory.level, factory.compact, true);
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            Map<String,PlatzCard.Probe> placed = new HashMap<> (probes.size ());
+            for (PlatzCard.Probe p : probes)
+                placed.put (PlatzCard.broker (p.transport), p);
+
+            int migrations = 0;
+            for (ActiveMQConnection c : new ArrayList<> (issued)) {
+                if (migrations >= maxMigrations)
+                    break;
+                PlatzCard.Probe current = placed.get (remote (c));
+                PlatzCard.Probe target = PlatzCard.choose (probes, def, factory.compact, factory.backlogWeight,
+                        factory.latencyPenalty);
+
+                if (target == null || target == current)
+                    continue;
+                if (current != null && (factory.compact || current.consumers - target.consumers <= 1))
+                    continue;//консюмер размещён по правилам
+                if (migrate (c, target) == false)
+                    continue;
+                migrations++;
+                PlatzCard.reserve (target, def, factory.level, factory.backlogWeight);
+                if (current != null)
+                    current.consumers--;
+            }
+        } finally {
+            for (PlatzCard.Probe p : probes)
+                p.close ();
+        }
+    }
+
+    /**
+     * Перенос консюмера: новое соединение, перенос консюмера приложением, закрытие старого соединения
+     * @return true, если перенос выполнен
+     */
+    boolean migrate (ActiveMQConnection from, PlatzCard.Probe target){
+        Connection to = target.connection;
+
+        if (to == null)
+            to = factory.connect (new PlatzCard.Probe (target.transport), false, ConcurrentHashMap.newKeySet ()).connection;
+        else
+            target.connection = null;//соединение опроса забираем под консюмер
+        if (to == null)
+            return false;
+        try {
+            migrator.migrate (from, to);
+        } catch (Exception e) {
+            try {
+                to.close ();
+            } catch (JMSException ee) {
+            }
+            return false;
+        }
+        issued.remove (from);
+        issue (to);
+        try {
+            from.close ();
+        } catch (JMSException e) {
+        }
+        return true;
+    }
+
+    /**
+     * Указатель на брокер соединения в формате host:port, как его формирует PlatzCard.broker для коннекторов опроса.
+     * Берётся из коннектора, через который установлено соединение, а не из адреса сокета:
+     * адрес сокета (hostname/ip:port) совпадает с указанием брокера в url только для коннекторов с ip.
+     */
+    static String remote (ActiveMQConnection c){
+        TransportConfiguration t = c.getSessionFactory ().getConnectorConfiguration ();
+        return (t == null)?null:PlatzCard.broker (t);
+    }
+
+    @Override
+    public void close (){
+        timer.shutdownNow ();
+        unwatch ();
+        issued.clear ();
+    }
+}
@@ -6,6 +6,8 @@ import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 public class ReportFields implements Serializable {
     String VTBAddress, VTBReport, JMSReplyTo;
@@ -106,7 +108,7 @@ public class ReportFields implements Serializable {
     public boolean setReplyTo (String q){
         if (q == null || q.isEmpty ())
             return false;
-        if (q.startsWith ("queue://") == false)
+        if (q.startsWith ("queue://") == false && q.startsWith (RequestID.TEMP_QUEUE) == false)
             JMSReplyTo = "queue://" + q;
         else
             JMSReplyTo = q;
@@ -117,11 +119,15 @@ public class ReportFields implements Serializable {
         return JMSReplyTo;
     }
     public String getReplyToQueue (){
-        return JMSReplyTo.substring ("queue://".length ());
+        return JMSReplyTo.substring ((isReplyToTemporary ()?RequestID.TEMP_QUEUE:"queue://").length ());
+    }
+    public boolean isReplyToTemporary (){
+        return JMSReplyTo != null && JMSReplyTo.startsWith (RequestID.TEMP_QUEUE);
     }
 
     public Destination getReplyToDestination (){
-        return ActiveMQDestination.createDestination (getReplyToQueue(),ActiveMQDestination.TYPE.QUEUE);
+        return ActiveMQDestination.createDestination (getReplyToQueue(),
+                isReplyToTemporary ()?ActiveMQDestination.TYPE.TEMP_QUEUE:ActiveMQDestination.TYPE.QUEUE);
     }
 
     public void setCorrelationID (Object q){
@@ -254,6 +260,116 @@ public class ReportFields implements Serializable {
 
         return r;
     }
+    static final byte VERSION = 1;//версия двоичного формата
+    //флаги двоичного формата: виды отчётов и признак referer
+    static final int DELIVERED = 1, EXPIRED = 2, KILLED = 4, REPLACED = 8, ACKNOWLEDGED = 16, FORWARDED = 32,
+            INTERCEPTED = 64, REFERER = 128;
+    //тип JMSCorrelationID в двоичном формате
+    static final byte NONE = 0, STRING = 1, LONG = 2, BYTES = 3;
+
+    int flags (){
+        return (delivered ? DELIVERED : 0) | (expired ? EXPIRED : 0) | (killed ? KILLED : 0) | (replaced ? REPLACED : 0)
+                | (acknowledged ? ACKNOWLEDGED : 0) | (forwarded ? FORWARDED : 0) | (intercepted ? INTERCEPTED : 0)
+                | (referer ? REFERER : 0);
+    }
+
+    /**
+     * Размер полей в двоичном формате, см. to (ByteBuffer)
+     */
+    public int getBinarySize (){
+        int size = 3 + BinaryCodec.sizeOfString (VTBAddress) + BinaryCodec.sizeOfString (VTBReport)
+                + BinaryCodec.sizeOfString (JMSReplyTo) + BinaryCodec.sizeOfString (VTBBroker)
+                + BinaryCodec.sizeOfString (originalId) + BinaryCodec.sizeOfString (originalAddress)
+                + BinaryCodec.sizeOfString (originalQueue)
+                + BinaryCodec.sizeOfVarLong (originalExpiryTime) + BinaryCodec.sizeOfVarLong (originalTimestamp);
+        if (JMSCorrelationID instanceof String)
+            size += BinaryCodec.sizeOfString ((String) JMSCorrelationID);
+        else if (JMSCorrelationID instanceof Long)
+            size += BinaryCodec.sizeOfVarLong ((Long) JMSCorrelationID);
+        else if (JMSCorrelationID instanceof byte[])
+            size += BinaryCodec.sizeOfVarLong (((byte[]) JMSCorrelationID).length) + ((byte[]) JMSCorrelationID).length;
+        return size;
+    }
+
+    /**
+     * Запись полей в двоичном формате: версия, флаги отчётов, тип JMSCorrelationID, строки (длина UTF-8 varint и байты,
+     * null сохраняется), JMSCorrelationID, время (varint)
+     * @param b буфер, в нём должно быть не менее getBinarySize () байт
+     * @return буфер b
+     * @throws IllegalArgumentException если тип JMSCorrelationID не String, Long или byte[]
+     */
+    public ByteBuffer to (ByteBuffer b){
+        byte type = (JMSCorrelationID == null)?NONE:(JMSCorrelationID instanceof String)?STRING
+                :(JMSCorrelationID instanceof Long)?LONG:(JMSCorrelationID instanceof byte[])?BYTES:-1;
+        if (type < 0)
+            throw new IllegalArgumentException ("JMSCorrelationID type: " + JMSCorrelationID.getClass ());
+        b.put (VERSION).put ((byte) flags ()).put (type);
+        BinaryCodec.putString (b, VTBAddress);
+        BinaryCodec.putString (b, VTBReport);
+        BinaryCodec.putString (b, JMSReplyTo);
+        switch (type) {
+            case STRING: BinaryCodec.putString (b, (String) JMSCorrelationID); break;
+            case LONG: BinaryCodec.putVarLong (b, (Long) JMSCorrelationID); break;
+            case BYTES:
+                BinaryCodec.putVarLong (b, ((byte[]) JMSCorrelationID).length);
+                b.put ((byte[]) JMSCorrelationID);
+        }
+        BinaryCodec.putString (b, VTBBroker);
+        BinaryCodec.putString (b, originalId);
+        BinaryCodec.putString (b, originalAddress);
+        BinaryCodec.putString (b, originalQueue);
+        BinaryCodec.putVarLong (b, originalExpiryTime);
+        BinaryCodec.putVarLong (b, originalTimestamp);
+        return b;
+    }
+
+    /**
+     * Чтение полей в двоичном формате, см. to (ByteBuffer)
+     * @param b буфер, позиция смещается за прочитанные поля
+     * @return поля, либо null для неизвестной версии или повреждённых данных
+     */
+    public static ReportFields from (ByteBuffer b){
+        try {
+            if (b.get () != VERSION)
+                return null;
+            ReportFields r = new ReportFields ();
+            int flags = b.get () & 0xFF;
+            byte type = b.get ();
+
+            r.delivered = (flags & DELIVERED) != 0;
+            r.expired = (flags & EXPIRED) != 0;
+            r.killed = (flags & KILLED) != 0;
+            r.replaced = (flags & REPLACED) != 0;
+            r.acknowledged = (flags & ACKNOWLEDGED) != 0;
+            r.forwarded = (flags & FORWARDED) != 0;
+            r.intercepted = (flags & INTERCEPTED) != 0;
+            r.referer = (flags & REFERER) != 0;
+            r.VTBAddress = BinaryCodec.getString (b);
+            r.VTBReport = BinaryCodec.getString (b);
+            r.JMSReplyTo = BinaryCodec.getString (b);
+            switch (type) {
+                case NONE: break;
+                case STRING: r.JMSCorrelationID = BinaryCodec.getString (b); break;
+                case LONG: r.JMSCorrelationID = BinaryCodec.getVarLong (b); break;
+                case BYTES:
+                    byte bytes[] = new byte[BinaryCodec.getLength (b)];
+                    b.get (bytes);
+                    r.JMSCorrelationID = bytes;
+                    break;
+                default: return null;
+            }
+            r.VTBBroker = BinaryCodec.getString (b);
+            r.originalId = BinaryCodec.getString (b);
+            r.originalAddress = BinaryCodec.getString (b);
+            r.originalQueue = BinaryCodec.getString (b);
+            r.originalExpiryTime = BinaryCodec.getVarLong (b);
+            r.originalTimestamp = BinaryCodec.getVarLong (b);
+            return r;
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException | JMSException e) {
+            return null;
+        }
+    }
+
     public boolean isResponseSuitable (Message response) throws JMSException {
         return JMSCorrelationID == null || (response.propertyExists ("JMSCorrelationID")
                 && response.getObjectProperty ("JMSCorrelationID").equals (JMSCorrelationID));
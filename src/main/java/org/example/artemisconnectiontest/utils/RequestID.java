@@ -10,6 +10,8 @@ import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.Session;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -39,11 +41,11 @@ public class RequestID implements Serializable {
     //указатель на брокер, либо идентификатор брокера, заполненый плагином
     String  broker;//чтобы получить указатель, надо вызывать RequestID.from (request,session);
     String  correlation;
-    //fixme нет поддержки временных очередей
+    static final String QUEUE = "queue://", TEMP_QUEUE = "temp-queue://";
+    //регулярные выражения прежнего разбора (parseRegex), временные очереди не поддерживаются
     static final Pattern pattern = Pattern.compile ("RequestID\\{id=ID:[a-z0-9\\-:]+,queue=queue://[\\w\\.\\-:/]+," +
             "expiration=[0-9]+,user=[\\w\\.\\-]*,broker=[\\w\\.\\-:/]*,correlation=\"[\\w\\-\\.,\\s\\=:/]*\"\\}");
     static final Pattern id_pattern = Pattern.compile ("id=ID:[a-z0-9\\-:]+,");
-    //fixme нет поддержки временных очередей
     static final Pattern queue_pattern = Pattern.compile ("queue=queue://[\\w\\.\\-:/]+,");
     static final Pattern expiry_pattern = Pattern.compile ("expiration=[0-9]+,");
     static final Pattern user_pattern = Pattern.compile ("user=[\\w\\.\\-]*,");
@@ -61,8 +63,8 @@ public class RequestID implements Serializable {
     public final String getid (){return id.substring ("ID:".length ());}
     public final String getMessageId (){return /*"ID:"+*/id;}
     public final String getqueue (){return  queue;}
-    //fixme нет поддержки временных очередей
-    public final String getQueue (){return  queue.substring ("queue://".length ());}
+    public final String getQueue (){return  queue.substring ((isTemporary ()?TEMP_QUEUE:QUEUE).length ());}
+    public final boolean isTemporary (){return queue.startsWith (TEMP_QUEUE);}
     public final long getExpiration (){return  expiration;}
     public final String getCorrelation (){return  correlation;}
     public final String getUser (){return  correlation;}
@@ -94,7 +96,8 @@ public class RequestID implements Serializable {
     }
 
     public final Destination getDestination (){
-        return ActiveMQDestination.createDestination (getQueue (), ActiveMQDestination.TYPE.QUEUE);
+        return ActiveMQDestination.createDestination (getQueue (),
+                isTemporary ()?ActiveMQDestination.TYPE.TEMP_QUEUE:ActiveMQDestination.TYPE.QUEUE);
     }
 
     public static RequestID from (String s){
@@ -119,11 +122,11 @@ public class RequestID implements Serializable {
         if (id.startsWith ("ID:") == false)
             return null;
 
-        //fixme нет поддержки временных очередей
-        if (queue == null || queue.isEmpty () || queue.startsWith ("queue://") == false)
+        if (queue == null || queue.isEmpty () || (queue.startsWith (QUEUE) || queue.startsWith (TEMP_QUEUE)) == false)
             return null;
 
-        if (queue.contains("::") == false)
+        //временная очередь существует только на брокере запроса, поэтому брокер сохраняется
+        if (queue.contains("::") == false && queue.startsWith (TEMP_QUEUE) == false)
             broker = null;
 
         return new RequestID (id/*.substring ("ID:".length ())*/,queue, expiry, user, broker, correlation);
@@ -170,6 +173,64 @@ public class RequestID implements Serializable {
                 && response.getObjectProperty ("JMSCorrelationID").equals (correlation));
     }
 
+    static final byte VERSION = 1;//версия двоичного формата
+    static final int TEMPORARY = 1, ID_PREFIX = 2;//флаги двоичного формата
+
+    /**
+     * Размер идентификатора в двоичном формате, см. to (ByteBuffer)
+     */
+    public int getBinarySize (){
+        boolean prefix = id.startsWith ("ID:");
+        return 2 + BinaryCodec.sizeOfString (id, prefix ? "ID:".length () : 0)
+                + BinaryCodec.sizeOfString (queue, (isTemporary ()?TEMP_QUEUE:QUEUE).length ())
+                + BinaryCodec.sizeOfVarLong (expiration)
+                + BinaryCodec.sizeOfString (user) + BinaryCodec.sizeOfString (broker) + BinaryCodec.sizeOfString (correlation);
+    }
+
+    /**
+     * Запись идентификатора в двоичном формате: версия, флаги (временная очередь, приставка ID:),
+     * id и очередь без приставок, expiration (varint), user, broker, correlation.
+     * Строки - длина UTF-8 (varint) и байты, null сохраняется
+     * @param b буфер, в нём должно быть не менее getBinarySize () байт
+     * @return буфер b
+     */
+    public ByteBuffer to (ByteBuffer b){
+        boolean prefix = id.startsWith ("ID:");
+        b.put (VERSION);
+        b.put ((byte) ((isTemporary ()?TEMPORARY:0) | (prefix ? ID_PREFIX : 0)));
+        BinaryCodec.putString (b, id, prefix ? "ID:".length () : 0);
+        BinaryCodec.putString (b, queue, (isTemporary ()?TEMP_QUEUE:QUEUE).length ());
+        BinaryCodec.putVarLong (b, expiration);
+        BinaryCodec.putString (b, user);
+        BinaryCodec.putString (b, broker);
+        BinaryCodec.putString (b, correlation);
+        return b;
+    }
+
+    /**
+     * Чтение идентификатора в двоичном формате, см. to (ByteBuffer)
+     * @param b буфер, позиция смещается за прочитанный идентификатор
+     * @return идентификатор, либо null для неизвестной версии или повреждённых данных
+     */
+    public static RequestID from (ByteBuffer b){
+        try {
+            if (b.get () != VERSION)
+                return null;
+            int flags = b.get ();
+            String id = BinaryCodec.getString (b, ((flags & ID_PREFIX) != 0)?"ID:":null);
+            String queue = BinaryCodec.getString (b, ((flags & TEMPORARY) != 0)?TEMP_QUEUE:QUEUE);
+            long expiration = BinaryCodec.getVarLong (b);
+            String user = BinaryCodec.getString (b);
+            String broker = BinaryCodec.getString (b);
+            String correlation = BinaryCodec.getString (b);
+            if (id == null || queue == null)
+                return null;
+            return new RequestID (id, queue, expiration, user, broker, correlation);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     @Override
     public final String toString() {
         return "RequestID{id=" + id /*ID:*/
@@ -180,7 +241,98 @@ public class RequestID implements Serializable {
                 + ",correlation=\"" + ((correlation!=null)?correlation:"") + "\"}";
     }
 
+    /**
+     * Разбор строки формата toString () за один проход без регулярных выражений и промежуточных строк
+     * @param s строка RequestID{id=...,queue=...,expiration=...,user=...,broker=...,correlation="..."}
+     * @return идентификатор, либо null, если строка не соответствует формату
+     */
     public static RequestID parse (String s){
+        if (s == null)
+            return null;
+        int end = s.length ();
+        int i = s.indexOf ('{');
+        if (i < 0)
+            return null;
+        //id=ID:[a-z0-9\-:]+,
+        int from = (i = field (s, i + 1, "id=")) + "ID:".length ();
+        if (i < 0 || s.startsWith ("ID:", i) == false)
+            return null;
+        int to = scan (s, from, ID);
+        if (to == from || to >= end || s.charAt (to) != ',')
+            return null;
+        String id = s.substring (i, to);
+        //queue=(temp-)queue://[\w\.\-:/]+,
+        if ((i = field (s, to + 1, "queue=")) < 0)
+            return null;
+        if (s.startsWith (QUEUE, i))
+            from = i + QUEUE.length ();
+        else if (s.startsWith (TEMP_QUEUE, i))
+            from = i + TEMP_QUEUE.length ();
+        else
+            return null;
+        if ((to = scan (s, from, PATH)) == from || to >= end || s.charAt (to) != ',')
+            return null;
+        String queue = s.substring (i, to);
+        //expiration=[0-9]+,
+        long expiration = 0;
+        if ((i = field (s, to + 1, "expiration=")) < 0)
+            return null;
+        for (to = i; to < end && s.charAt (to) >= '0' && s.charAt (to) <= '9'; to++)
+            expiration = expiration * 10 + (s.charAt (to) - '0');
+        if (to == i || to >= end || s.charAt (to) != ',')
+            return null;
+        //user=[\w\.\-]*,
+        if ((i = field (s, to + 1, "user=")) < 0 || (to = scan (s, i, USER)) >= end || s.charAt (to) != ',')
+            return null;
+        String user = (to > i)?s.substring (i, to):null;
+        //broker=[\w\.\-:/]*,
+        if ((i = field (s, to + 1, "broker=")) < 0 || (to = scan (s, i, PATH)) >= end || s.charAt (to) != ',')
+            return null;
+        String broker = (to > i)?s.substring (i, to):null;
+        //correlation="[\w\-\.,\s\+\=:/]*"
+        if ((i = field (s, to + 1, "correlation=\"")) < 0 || (to = scan (s, i, CORRELATION)) >= end || s.charAt (to) != '"')
+            return null;
+        String correlation = (to > i)?s.substring (i, to):null;
+
+        return new RequestID (id, queue, expiration, user, broker, correlation);
+    }
+
+    //допустимые символы полей, как в регулярных выражениях разбора
+    static final int ID = 0, PATH = 1, USER = 2, CORRELATION = 3;
+
+    /**
+     * Позиция значения поля name, если оно начинается в позиции i, иначе -1
+     */
+    static int field (String s, int i, String name){
+        return (i >= 0 && s.startsWith (name, i))?i + name.length ():-1;
+    }
+
+    /**
+     * Позиция первого символа, недопустимого для поля типа type, начиная с позиции i
+     */
+    static int scan (String s, int i, int type){
+        int end = s.length ();
+        for (; i < end; i++) {
+            char c = s.charAt (i);
+            boolean word = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            boolean ok;
+            switch (type) {
+                case ID: ok = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == ':'; break;
+                case PATH: ok = word || c == '.' || c == '-' || c == ':' || c == '/'; break;
+                case USER: ok = word || c == '.' || c == '-'; break;
+                default: ok = word || c == '-' || c == '.' || c == ',' || Character.isWhitespace (c) && c <= ' '
+                        || c == '+' || c == '=' || c == ':' || c == '/';
+            }
+            if (ok == false)
+                return i;
+        }
+        return i;
+    }
+
+    /**
+     * Разбор строки формата toString () регулярными выражениями, прежняя реализация parse
+     */
+    static RequestID parseRegex (String s){
         String id;
         String queue;
         String user;
@@ -261,10 +413,30 @@ public class RequestID implements Serializable {
         return new RequestID (id, queue, expiration, user, broker, correlation);
     }
 
+    /**
+     * Проверка и сравнение скорости разбора parse и parseRegex:
+     *  java ... RequestID [итераций=1000000]
+     */
     public static void main(final String[] args){
-        //fixme нет поддержки временных очередей
         RequestID f = parse ("ResponseFields{id=ID:16a2bbde-d01f-11ec-b40e-f8e43b68135b,queue=queue://Client1.Response,expiration=0,user=,broker=localhost/127.0.0.1:61617,correlation=\"any tex.,, -\"}");
         f = parse ("RequestID{id=ID:e034cd67-d9d9-11ec-9f5b-f8e43b68135b,queue=queue://DC.Client2.Reply,expiration=1653229133433,user=,broker=,correlation=\"ID:dfe65f41-d9d9-11ec-9f5b-f8e43b68135b\"}");
+        String s = f.toString ();
+        if (s.equals (parseRegex (s).toString ()) == false)
+            throw new IllegalStateException ("parse != parseRegex: " + s);
+
+        int n = (args.length > 0)?Integer.parseInt (args[0]):1000000;
+        for (int round = 0; round < 3; round++) {//первые раунды - прогрев
+            long start = System.nanoTime ();
+            for (int i = 0; i < n; i++)
+                f = parseRegex (s);
+            long regex = System.nanoTime () - start;
+            start = System.nanoTime ();
+            for (int i = 0; i < n; i++)
+                f = parse (s);
+            long single = System.nanoTime () - start;
+            System.out.printf ("round %d: parseRegex %.1f ns/op, parse %.1f ns/op, x%.1f%n", round,
+                    (double) regex / n, (double) single / n, (double) regex / single);
+        }
         //File temp = File.createTempFile (f.id, null, null);
         //new FileOutputStream (temp).write (f.toString().getBytes (StandardCharsets.UTF_8));
         //new String (new FileInputStream (f.id).readAllBytes (),StandardCharsets.UTF_8);
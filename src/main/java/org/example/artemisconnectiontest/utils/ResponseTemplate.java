@@ -15,23 +15,25 @@ public class ResponseTemplate extends RequestID implements MessagePostProcessor
     }
 
     public static ResponseTemplate from (File f) throws IOException {
-        RequestID id = RequestID.from (f);
-        if (id == null)
-            return null;
-        return new ResponseTemplate (id);
+        return of (RequestID.from (f));
     }
     public static ResponseTemplate from (InputStream i) throws IOException {
-        RequestID id = RequestID.from (i);
-        if (id == null)
-            return null;
-        return new ResponseTemplate (RequestID.from (i));
+        return of (RequestID.from (i));
     }
 
     public static ResponseTemplate from (String s){
-        RequestID id = RequestID.from (s);
+        return of (RequestID.from (s));
+    }
+
+    /**
+     * Шаблон ответа по уже разобранному идентификатору запроса, без повторного разбора
+     * @param id идентификатор запроса, может быть null
+     * @return шаблон, либо null
+     */
+    public static ResponseTemplate of (RequestID id){
         if (id == null)
             return null;
-        return new ResponseTemplate (RequestID.from (s));
+        return (id instanceof ResponseTemplate)?(ResponseTemplate) id:new ResponseTemplate (id);
     }
 
     @Override
@@ -0,0 +1,69 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.apache.activemq.artemis.core.remoting.impl.netty.TransportConstants;
+import org.apache.activemq.artemis.core.remoting.impl.ssl.DefaultSSLContextFactory;
+import org.apache.activemq.artemis.spi.core.remoting.ssl.SSLContextConfig;
+import org.apache.activemq.artemis.utils.ConfigurationHelper;
+
+import javax.net.ssl.SSLContext;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Общий SSL-контекст для соединений Artemis.
+ * Без него каждая новая фабрика соединений заново читает и разбирает хранилища ключей (PFX) и создаёт свой
+ * SSL-контекст, поэтому каждое подключение выполняет полное TLS-рукопожатие. Класс подключается к клиенту Artemis
+ * через SPI SSLContextFactory (META-INF/services) с приоритетом выше стандартной фабрики: контекст строится
+ * стандартной фабрикой один раз для каждого набора хранилищ и затем выдаётся всем коннекторам с теми же
+ * хранилищами, поэтому повторные подключения к брокеру возобновляют TLS-сессию из кэша контекста.
+ * Контекст доступен только коннекторам Artemis, контекст JVM по умолчанию (SSLContext.getDefault) не изменяется:
+ * коннекторам с useDefaultSslContext=true он выдаётся стандартной фабрикой без кэша и без настройки сессий.
+ */
+public class TlsContext extends DefaultSSLContextFactory {
+    static int sessionTimeout = 24 * 60 * 60;//время жизни TLS-сессии в кэше, с
+
+    private static final Map<String,SSLContext> contexts = new ConcurrentHashMap<> ();
+
+    @Override
+    public SSLContext getSSLContext (SSLContextConfig config, Map<String,Object> additionalOpts) throws Exception {
+        if (useDefault (additionalOpts))
+            return super.getSSLContext (config, additionalOpts);//контекст JVM, не наш
+        String key = key (config, additionalOpts);
+        SSLContext context = contexts.get (key);
+
+        if (context != null)
+            return context;
+        context = super.getSSLContext (config, additionalOpts);
+        context.getClientSessionContext ().setSessionTimeout (sessionTimeout);
+        SSLContext previous = contexts.putIfAbsent (key, context);
+        return (previous != null)?previous:context;
+    }
+
+    /**
+     * Признак коннектора, которому нужен контекст JVM по умолчанию (useDefaultSslContext)
+     */
+    static boolean useDefault (Map<String,Object> additionalOpts){
+        return ConfigurationHelper.getBooleanProperty (TransportConstants.USE_DEFAULT_SSL_CONTEXT_PROP_NAME,
+                TransportConstants.DEFAULT_USE_DEFAULT_SSL_CONTEXT, additionalOpts);
+    }
+
+    /**
+     * Ключ кэша: хранилища, их пароли, параметры проверки сертификатов и признак контекста JVM по умолчанию
+     */
+    static String key (SSLContextConfig config, Map<String,Object> additionalOpts){
+        return String.join ("|", config.getKeystoreProvider (), config.getKeystorePath (), config.getKeystorePassword (),
+                config.getTruststoreProvider (), config.getTruststorePath (), config.getTruststorePassword (),
+                config.getCrlPath (), config.getTrustManagerFactoryPlugin (), String.valueOf (config.isTrustAll ()),
+                String.valueOf (useDefault (additionalOpts)));
+    }
+
+    @Override
+    public void clearSSLContexts (){
+        contexts.clear ();
+    }
+
+    @Override
+    public int getPriority (){
+        return super.getPriority () + 10;//выше стандартной фабрики
+    }
+}
@@ -0,0 +1,126 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.apache.activemq.artemis.api.core.TransportConfiguration;
+import org.apache.activemq.artemis.api.core.client.ClusterTopologyListener;
+import org.apache.activemq.artemis.api.core.client.TopologyMember;
+import org.apache.activemq.artemis.core.client.impl.Topology;
+import org.apache.activemq.artemis.core.client.impl.TopologyMemberImpl;
+import org.apache.activemq.artemis.core.remoting.impl.netty.TransportConstants;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Неизменяемый индекс топологии кластера: live/backup по host:port, парный брокер (по backup_shift),
+ * резервный и основной брокер, активизированные резервные брокеры. Индекс строится один раз на топологию
+ * и перестраивается только после изменения топологии (по ClusterTopologyListener), поэтому поиск
+ * в PlatzCard выполняется без перебора членов топологии и разбора портов.
+ */
+final class TopologyIndex {
+    //индексы по топологиям и версии топологий, версия увеличивается при каждом изменении топологии
+    private static final Map<Topology,TopologyIndex> cache = Collections.synchronizedMap (new WeakHashMap<> ());
+    private static final Map<Topology,AtomicLong> versions = Collections.synchronizedMap (new WeakHashMap<> ());
+
+    final long version;//версия топологии, по которой построен индекс
+
+    final Map<String,TransportConfiguration> backups;//host:port основного -> резервный
+    final Map<String,TransportConfiguration> lives;//host:port резервного -> основной
+    final Map<String,TransportConfiguration> livesByKey;//host:port основного -> основной
+    final Map<String,TransportConfiguration> partners;//host:port основного -> парный основной
+    final List<TransportConfiguration[]> activated;//{основной без резерва, парный основной}, в порядке топологии
+
+    private TopologyIndex (Collection<TopologyMemberImpl> members, long version){
+        this.version = version;
+        Map<String,TransportConfiguration> backups = new HashMap<> (), lives = new HashMap<> (), livesByKey = new HashMap<> (),
+                partners = new HashMap<> ();
+        List<TransportConfiguration[]> activated = new ArrayList<> ();
+
+        for (TopologyMemberImpl member : members) {
+            if (member.getLive () == null)
+                continue;
+            String live = key (member.getLive ());
+            livesByKey.put (live, member.getLive ());
+            if (member.getBackup () != null) {
+                backups.put (live, member.getBackup ());
+                lives.put (key (member.getBackup ()), member.getLive ());
+            }
+        }
+        for (TopologyMemberImpl member : members) {
+            if (member.getLive () == null)
+                continue;
+            if (member.getBackup () != null) {
+                //парный брокер - основной на хосте резервного со сдвигом порта
+                TransportConfiguration partner = livesByKey.get (shift (member.getBackup (), -PlatzCard.backup_shift));
+                if (partner != null)
+                    partners.put (key (member.getLive ()), partner);
+            }
+            else {
+                //активизированный резервный брокер, его парный - основной на том же хосте без сдвига порта
+                TransportConfiguration partner = livesByKey.get (shift (member.getLive (), -PlatzCard.backup_shift));
+                if (partner != null)
+                    activated.add (new TransportConfiguration[]{member.getLive (), partner});
+            }
+        }
+        this.backups = Collections.unmodifiableMap (backups);
+        this.lives = Collections.unmodifiableMap (lives);
+        this.livesByKey = Collections.unmodifiableMap (livesByKey);
+        this.partners = Collections.unmodifiableMap (partners);
+        this.activated = Collections.unmodifiableList (activated);
+    }
+
+    /**
+     * Метод выдаёт индекс топологии, индекс строится при первом обращении и после изменения топологии
+     * @param topology топология, может быть null
+     * @return индекс, либо null для topology=null
+     */
+    static TopologyIndex of (Topology topology){
+        if (topology == null)
+            return null;
+        AtomicLong version = versions.get (topology);
+        if (version == null) {
+            synchronized (versions) {
+                if ((version = versions.get (topology)) == null) {
+                    AtomicLong v = version = new AtomicLong ();
+                    versions.put (topology, v);
+                    topology.addClusterTopologyListener (new ClusterTopologyListener () {
+                        @Override
+                        public void nodeUP (TopologyMember member, boolean last){
+                            v.incrementAndGet ();
+                        }
+                        @Override
+                        public void nodeDown (long eventUID, String nodeID){
+                            v.incrementAndGet ();
+                        }
+                    });
+                }
+            }
+        }
+        long current = version.get ();//версию читаем до чтения членов топологии
+        TopologyIndex index = cache.get (topology);
+        if (index == null || index.version != current)
+            cache.put (topology, index = new TopologyIndex (topology.getMembers (), current));
+        return index;
+    }
+
+    /**
+     * Нормализованный указатель host:port
+     */
+    static String key (TransportConfiguration t){
+        return PlatzCard.broker (t);
+    }
+    static String key (String host, Object port){
+        return String.valueOf (host).toLowerCase () + ":" + port;
+    }
+
+    /**
+     * Указатель host:port со сдвигом порта
+     */
+    static String shift (TransportConfiguration t, int shift){
+        try {
+            int port = Integer.parseUnsignedInt (t.getParams ().get (TransportConstants.PORT_PROP_NAME).toString ());
+            return key ((String) t.getParams ().get (TransportConstants.HOST_PROP_NAME), port + shift);
+        } catch (NumberFormatException | NullPointerException e) {
+            return null;
+        }
+    }
+}
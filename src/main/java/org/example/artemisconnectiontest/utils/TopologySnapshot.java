@@ -0,0 +1,150 @@
+package org.example.artemisconnectiontest.utils;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.activemq.artemis.api.core.TransportConfiguration;
+import org.apache.activemq.artemis.core.client.impl.Topology;
+import org.apache.activemq.artemis.core.client.impl.TopologyMemberImpl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Снимок топологии кластера в файле: пары основной/резервный брокер с узлами и параметрами транспорта.
+ * Парные брокеры (backup_shift) и активизированные резервные брокеры вычисляются по снимку так же,
+ * как по живой топологии (TopologyIndex). Снимок позволяет начать выбор резервных брокеров до подключения
+ * к кластеру, когда свой ЦОД недоступен.
+ * Пароли хранилищ ключей (параметры *Password*) в снимок не записываются, при загрузке они берутся
+ * из транспорта фабрики.
+ */
+final class TopologySnapshot {
+    private static final ObjectMapper json = new ObjectMapper ();
+
+    private TopologySnapshot (){}
+
+    /**
+     * Метод сохраняет топологию в файл (через временный файл, чтобы не оставить неполный снимок)
+     * @param topology топология
+     * @param file файл снимка
+     * @throws IOException при ошибке записи
+     */
+    static void save (Topology topology, Path file) throws IOException {
+        ArrayNode members = json.createArrayNode ();
+
+        for (TopologyMemberImpl member : topology.getMembers ()) {
+            if (member.getLive () == null)
+                continue;
+            ObjectNode m = members.addObject ();
+            m.put ("nodeId", member.getNodeId ());
+            m.put ("backupGroupName", member.getBackupGroupName ());
+            m.put ("scaleDownGroupName", member.getScaleDownGroupName ());
+            m.set ("live", transport (member.getLive ()));
+            if (member.getBackup () != null)
+                m.set ("backup", transport (member.getBackup ()));
+        }
+        if (members.isEmpty ())
+            return;//пустую топологию не сохраняем, чтобы не затереть последнюю известную
+        ObjectNode root = json.createObjectNode ();
+        root.put ("saved", System.currentTimeMillis ());
+        root.set ("members", members);
+
+        Path dir = file.toAbsolutePath ().getParent ();
+        Path tmp = Files.createTempFile (dir, file.getFileName ().toString (), ".tmp");
+        try {
+            json.writerWithDefaultPrettyPrinter ().writeValue (tmp.toFile (), root);
+            Files.move (tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists (tmp);
+        }
+    }
+
+    /**
+     * Метод загружает топологию из файла
+     * @param file файл снимка
+     * @param secrets пароли для транспортов снимка (см. secrets), добавляются к параметрам без замены
+     * @return топология, либо null, если снимка нет или он не читается
+     */
+    static Topology load (Path file, Map<String,Object> secrets){
+        if (Files.isReadable (file) == false)
+            return null;
+        try {
+            JsonNode root = json.readTree (file.toFile ());
+            Topology topology = new Topology (file);
+            long event = root.path ("saved").asLong ();
+
+            for (JsonNode m : root.path ("members")) {
+                TransportConfiguration live = transport (m.path ("live"), secrets);
+                TransportConfiguration backup = m.has ("backup") ? transport (m.path ("backup"), secrets) : null;
+                String nodeId = m.path ("nodeId").asText ();
+                topology.updateMember (event, nodeId, new TopologyMemberImpl (nodeId,
+                        m.path ("backupGroupName").asText (null), m.path ("scaleDownGroupName").asText (null), live, backup));
+            }
+            return topology.getMembers ().isEmpty () ? null : topology;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static ObjectNode transport (TransportConfiguration t){
+        ObjectNode node = json.createObjectNode ();
+        Map<String,Object> params = new HashMap<> (t.getParams ());
+
+        params.keySet ().removeIf (TopologySnapshot::secret);
+        node.put ("factory", t.getFactoryClassName ());
+        node.set ("params", json.valueToTree (params));
+        return node;
+    }
+
+    static TransportConfiguration transport (JsonNode node, Map<String,Object> secrets){
+        Map<String,Object> params = json.convertValue (node.path ("params"), new TypeReference<Map<String,Object>> (){});
+        if (secrets != null)
+            secrets.forEach (params::putIfAbsent);
+        return new TransportConfiguration (node.path ("factory").asText (), params);
+    }
+
+    /**
+     * Признак параметра транспорта, который нельзя сохранять в снимке (keyStorePassword, trustStorePassword и т.п.)
+     */
+    static boolean secret (String key){
+        return key != null && key.toLowerCase (Locale.ROOT).contains ("password");
+    }
+
+    /**
+     * Пароли из параметров транспорта
+     * @param t транспорт, либо null
+     */
+    static Map<String,Object> secrets (TransportConfiguration t){
+        Map<String,Object> secrets = new HashMap<> ();
+        if (t != null)
+            t.getParams ().forEach ((k, v) -> {
+                if (secret (k))
+                    secrets.put (k, v);
+            });
+        return secrets;
+    }
+
+    /**
+     * Копия топологии, не связанная с ServerLocator, из которого она получена: после закрытия фабрики
+     * соединений её топология может очищаться
+     * @param topology топология, либо null
+     * @param owner владелец копии
+     * @return копия, либо null
+     */
+    static Topology copy (Topology topology, Object owner){
+        if (topology == null)
+            return null;
+        Topology copy = new Topology (owner);
+        long event = System.currentTimeMillis ();
+        for (TopologyMemberImpl member : topology.getMembers ())
+            copy.updateMember (event, member.getNodeId (), member);
+        return copy;
+    }
+}
@@ -2,23 +2,63 @@ package org.example.artemisconnectiontest.vtbartemis.adapter;
 
 import org.example.artemisconnectiontest.utils.ReportFields;
 import org.example.artemisconnectiontest.utils.RequestID;
+import jakarta.annotation.PreDestroy;
+import org.example.artemisconnectiontest.vtbartemis.utils.VtbRequestJournal;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jms.annotation.JmsListener;
 import org.springframework.stereotype.Component;
 
 import javax.jms.*;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class VtbArtemisListener {
+    @Autowired
+    private VtbRequestJournal journal;
+    @Autowired
+    private VtbArtemisSender sender;
+    @Autowired
+    private VtbArtemisReplier replier;
+
+    //асинхронная обработка: запрос после сохранения в журнале обрабатывается в виртуальной нити,
+    //ответ отправляет VtbArtemisReplier, нить слушателя сразу получает следующий запрос
+    boolean async = true;
+    int maxInFlight = 64;//запросов в обработке, при превышении нить слушателя ждёт
+    long shutdownTimeout = 15000;//ожидание обработки запросов при остановке, мс (как processTimeout журнала)
+    private volatile Semaphore inFlight = new Semaphore (maxInFlight);
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor ();
+
+    public boolean getAsync (){return async;} public void setAsync (boolean async){this.async = async;}
+    public int getMaxInFlight (){return maxInFlight;} public void setMaxInFlight (int maxInFlight){this.maxInFlight = maxInFlight; inFlight = new Semaphore (maxInFlight);}
+    public long getShutdownTimeout (){return shutdownTimeout;} public void setShutdownTimeout (long shutdownTimeout){this.shutdownTimeout = shutdownTimeout;}
+
+    /**
+     * Остановка асинхронной обработки. Слушатели к этому моменту уже остановлены контейнером, поэтому новых
+     * запросов нет; запросы в обработке возвращают разрешения inFlight только после отправки ответа и отметки
+     * в журнале, их ждём до shutdownTimeout. Не завершённые за это время запросы прерываются и будут
+     * обработаны из журнала после перезапуска
+     */
+    @PreDestroy
+    public void shutdown () throws InterruptedException {
+        long deadline = System.currentTimeMillis () + shutdownTimeout;
+
+        if (inFlight.tryAcquire (maxInFlight, shutdownTimeout, TimeUnit.MILLISECONDS) == false)
+            System.out.println ("Слушатель запросов -> обработка не завершена за " + shutdownTimeout + " мс");
+        workers.shutdown ();
+        if (workers.awaitTermination (Math.max (0, deadline - System.currentTimeMillis ()), TimeUnit.MILLISECONDS) == false)
+            workers.shutdownNow ();
+    }
+
     @JmsListener(destination = "DC.fbti-dev.FTI.FTI_TIM.SEARCH_CLIENT.REQ.Q", //запрос
             containerFactory = "ServiceFactory", concurrency = "1-1")
     public void service1 (Message request, Session session) throws JMSException, InterruptedException, IOException {
         RequestID id = null;
         TextMessage response;
-        File temp = null;
 
         try {
             id = RequestID.from (request,session);
@@ -33,12 +73,8 @@ public class VtbArtemisListener {
             System.out.println ("Слушатель запросов -> id запроса " + id.getid());
             //Контроль повторного получения сообщения - описать использования, применить в примерах
             //Проверку повторного получения можно делать и Message.getJMSRedelivered ()
-            temp = new File (System.getProperty ("java.io.tmpdir")+"/"+ id.getid ()+".requestId");
-
-            if (temp.exists ())//скорее всего такой файл уже есть, запрос не надо обрабатывать, транзакция откатилась
+            if (journal.request (id) == false)//запрос уже есть в журнале, его не надо обрабатывать, транзакция откатилась
                 return;//она либо уже обработана, либо будет обработана асинхронно
-
-            id.to (temp);
         } catch (IOException | JMSException e) {
             e.printStackTrace ();
             return;
@@ -52,33 +88,66 @@ public class VtbArtemisListener {
             if (session.getAcknowledgeMode () != Session.AUTO_ACKNOWLEDGE && session.getAcknowledgeMode () != Session.SESSION_TRANSACTED)
                 request.acknowledge ();//Требуется для сессий INDIVIDUAL_ACKNOWLEDGE и CLIENT_ACKNOWLEDGE
         }
-        //ответ должен храниться в файле на случай сбоя
-        File tempR = new File (System.getProperty ("java.io.tmpdir")+"/"+ id.getid ()+".response");
-
-        if (tempR.exists () == false) {
-            //запрос ещё не обрабатывался, так как нет файла с ответом
-            //теперь можно долго обрабатывать запрос
-            Thread.sleep ((long)(Math.random()*10000));
-            //формируем "ответ" и записываем его в файл для нескольких итераций отправки ответа
-            FileOutputStream o = new FileOutputStream (tempR);
-            o.write (("Service response " + id.getid ()).getBytes (StandardCharsets.UTF_8));
-            o.close ();
+        if (async) {//запрос сохранён и подтверждён, дальше его можно обрабатывать в другой нити
+            Semaphore permits = inFlight;
+            permits.acquire ();//ограничение числа запросов в обработке
+            final RequestID rid = id;
+            workers.execute (() -> {
+                try {
+                    byte response[] = process (rid);
+                    replier.reply (rid, response).whenCompleteAsync ((v, e) -> {
+                        try {
+                            if (e != null) {//ответ будет дослан из журнала нитью VtbArtemisSavedRequestHandler
+                                System.out.println ("Слушатель запросов -> ответ не отправлен: " + e);
+                                return;
+                            }
+                            System.out.println ("Слушатель запросов -> ответ отправлен: " + rid.getid ());
+                            journal.complete (rid.getid ());
+                        } catch (IOException x) {
+                            System.out.println (x);
+                        } finally {
+                            permits.release ();
+                        }
+                    }, workers);
+                } catch (Exception e) {//запрос будет обработан повторно из журнала
+                    System.out.println (e);
+                    permits.release ();
+                }
+            });
+            return;
         }
+        byte saved[] = process (id);
 
-        //обработка закончена, запишем результат обработки в файл
+        //обработка закончена, результат обработки в журнале
         //пытаемся отправить ответ, после долгого перерыва это может не получиться
         //важно отправить ответ в той же сессии, что получен запрос
         session.createProducer (id.getDestination ())
-                .send (id.prepareResponse ((response = session.createTextMessage ("Service response " + id.getid()))),
+                .send (id.prepareResponse ((response = session.createTextMessage (new String (saved, StandardCharsets.UTF_8)))),
                         DeliveryMode.PERSISTENT, 4, 60000);
 
         System.out.println ("Слушатель запросов -> текст запроса: " + response.getText());
 
         //если отправка не удастся. что бывает после долгого перерыва,
-        // можно повторить отправку из файла после обработки следующего запроса.
-        //имеет смысл отправлять все сохранённые файлы, кроме
-        temp.delete ();
-        tempR.delete ();
+        // ответ будет дослан из журнала нитью VtbArtemisSavedRequestHandler
+        journal.complete (id.getid ());
+    }
+
+    /**
+     * Обработка запроса, ответ должен храниться в журнале на случай сбоя
+     * @return ответ
+     */
+    byte[] process (RequestID id) throws InterruptedException, IOException {
+        byte saved[] = journal.response (id.getid ());
+
+        if (saved == null) {
+            //запрос ещё не обрабатывался, так как в журнале нет ответа
+            //теперь можно долго обрабатывать запрос
+            Thread.sleep ((long)(Math.random()*10000));
+            //формируем "ответ" и записываем его в журнал для нескольких итераций отправки ответа
+            saved = ("Service response " + id.getid ()).getBytes (StandardCharsets.UTF_8);
+            journal.respond (id.getid (), saved);
+        }
+        return saved;
     }
 
     //метод получает подтверждение о доставке сообщения (отчёты)
@@ -86,6 +155,7 @@ public class VtbArtemisListener {
     public void report (Message m, Session s) throws JMSException {
         ReportFields rf = ReportFields.from (m);
         System.out.println ("Сообщение о доставке в сервис для :" + rf.getReport());
+        sender.report (rf);//время доставки запросов клиента
 
         if (s.getAcknowledgeMode () != Session.AUTO_ACKNOWLEDGE || s.getAcknowledgeMode () != Session.SESSION_TRANSACTED)
             m.acknowledge ();//Требуется для сессий INDIVIDUAL_ACKNOWLEDGE и CLIENT_ACKNOWLEDGE
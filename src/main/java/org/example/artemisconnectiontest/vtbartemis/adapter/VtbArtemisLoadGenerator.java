@@ -0,0 +1,110 @@
+package org.example.artemisconnectiontest.vtbartemis.adapter;
+
+import org.apache.activemq.artemis.jms.client.ActiveMQDestination;
+import org.example.artemisconnectiontest.vtbartemis.utils.VtbLatencyHistogram;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Генератор нагрузки на путь запрос-ответ через VtbArtemisSender (заголовки запросов формирует ReportFields.prepareRequest).
+ * Запросы отправляются по расписанию с постоянной частотой rate, задержки отсчитываются от запланированного
+ * времени отправки, а не от фактического, поэтому задержка отправки из-за исчерпания concurrency или окна
+ * отправителя входит в задержку (учёт coordinated omission). Записываются задержки подтверждения отправки
+ * брокером, отчёта о доставке сервису и ответа сервиса.
+ */
+@Component
+public class VtbArtemisLoadGenerator {
+    public static final double MAX_RATE = 1e9;//не чаще одного запроса в наносекунду
+
+    @Autowired
+    private VtbArtemisSender sender;
+
+    /**
+     * Запуск нагрузки, выполняется в виртуальной нити
+     * @param rate запросов в секунду, не больше MAX_RATE
+     * @param concurrency наибольшее число запросов, ожидающих ответа (не больше окна отправителя VtbArtemisSender.window)
+     * @param size размер текста запроса, символов
+     * @param duration длительность, с
+     * @param destination очередь или адрес запросов, null - очередь запросов по умолчанию
+     * @return отчёт с распределением задержек
+     */
+    public CompletableFuture<String> run (double rate, int concurrency, int size, long duration, String destination){
+        CompletableFuture<String> result = new CompletableFuture<> ();
+
+        Thread.ofVirtual ().name ("VtbArtemisLoadGenerator").start (() -> {
+            try {
+                result.complete (load (rate, concurrency, size, duration, destination));
+            } catch (Throwable e) {
+                result.completeExceptionally (e);
+            }
+        });
+        return result;
+    }
+
+    String load (double rate, int concurrency, int size, long duration, String destination)
+            throws JMSException, InterruptedException {
+        if ((rate > 0 && rate <= MAX_RATE) == false)
+            throw new IllegalArgumentException ("rate must be in (0, " + MAX_RATE + "]: " + rate);
+        VtbLatencyHistogram sent = new VtbLatencyHistogram ("send (broker confirmation)"),
+                delivered = new VtbLatencyHistogram ("delivered report"),
+                replied = new VtbLatencyHistogram ("reply");
+        AtomicLong failed = new AtomicLong (), rejected = new AtomicLong (), timedOut = new AtomicLong ();
+        Semaphore inFlight = new Semaphore (concurrency);
+        Destination to = (destination == null)?null:ActiveMQDestination.createDestination (destination, ActiveMQDestination.TYPE.QUEUE);
+        String text = "x".repeat (size);
+        double interval = 1e9 / rate;//в наносекундах, дробная часть накапливается
+        long start = System.nanoTime (), end = start + TimeUnit.SECONDS.toNanos (duration);
+        long requests = 0;//отправленные запросы, сами запросы не храним: их число растёт как rate * duration
+
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * interval);//запланированное время отправки
+            if (intended >= end)
+                break;
+            for (long wait = intended - System.nanoTime (); wait > 0; wait = intended - System.nanoTime ())
+                LockSupport.parkNanos (wait);
+            inFlight.acquire ();
+
+            VtbArtemisSender.Exchange e;
+            try {
+                e = (to == null)?sender.request (text):sender.request (to, text);
+            } catch (JMSException | RuntimeException x) {
+                inFlight.release ();
+                rejected.incrementAndGet ();//запрос не отправлен
+                continue;
+            }
+            requests++;
+            e.getConfirmed ().thenRun (() -> sent.record (e.getSent () - intended));
+            e.getReport ().thenRun (() -> delivered.record (e.getDelivered () - intended));
+            e.getReply ().handle ((m, x) -> {
+                inFlight.release ();
+                if (x == null)
+                    replied.record (e.getReplied () - intended);
+                else if (x instanceof TimeoutException || x.getCause () instanceof TimeoutException)
+                    timedOut.incrementAndGet ();
+                else
+                    failed.incrementAndGet ();
+                return null;
+            });
+        }
+        //ответ или таймаут каждого запроса возвращает разрешение, ждём все разрешения не дольше таймаута ответа
+        boolean drained = inFlight.tryAcquire (concurrency, sender.getTimeout () + 10000, TimeUnit.MILLISECONDS);
+        double elapsed = (System.nanoTime () - start) / 1e9;
+
+        return String.format (Locale.ROOT, "rate=%.1f/s concurrency=%d size=%d duration=%ds destination=%s%n"
+                        + "requests=%d replies=%d timeouts=%d errors=%d elapsed=%.1fs throughput=%.1f/s%s%n%n",
+                rate, concurrency, size, duration, (destination == null)?"default":destination,
+                requests + rejected.get (), replied.getTotalCount (), timedOut.get (), failed.get () + rejected.get (), elapsed,
+                replied.getTotalCount () / elapsed, drained ? "" : " (some requests still in flight)")
+                + sent.percentiles () + "\n" + delivered.percentiles () + "\n" + replied.percentiles ();
+    }
+}
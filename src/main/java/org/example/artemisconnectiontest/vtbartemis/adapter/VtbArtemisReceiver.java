@@ -1,35 +1,107 @@
 package org.example.artemisconnectiontest.vtbartemis.adapter;
 
-import org.example.artemisconnectiontest.utils.ReportFields;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Component;
-
-import javax.jms.JMSException;
-import javax.jms.MessageConsumer;
-import javax.jms.TextMessage;
-
-
-public class VtbArtemisReceiver {
-
-    public void receiveMassage(MessageConsumer consumer, ReportFields rt) throws JMSException {
-        //ждём ответ, делаем полезные вещи
-        do {//ждать надо в цикле, использовать селектор по корреляционному идентификатору не годится, так как
-            //могут прийти запоздалые ответы от долгоиграющего сервиса
-            TextMessage response = (TextMessage) consumer.receive(60000);
-            //поставим небольшой таймаут, чтобы не ждать вечно в случае ошибки сервиса
-            if (response == null) {
-                System.out.println ("Ответ от клиента : нет ответа повтори\n\n");
-                break;//новый запрос протолкнёт старые ответы
-            }
+import org.apache.activemq.artemis.api.jms.ActiveMQJMSConstants;
+
+import javax.jms.*;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Получатель ответов: один асинхронный консюмер на очередь ответов, ответы раздаются ожидающим запросам
+ * по JMSCorrelationID. Вместо цикла receive с отбрасыванием чужих ответов и селекторов по корреляционному
+ * идентификатору (OR-селектор брокер проверяет для каждого сообщения) на одной очереди может ждать ответа
+ * сколько угодно запросов, медленный ответ не задерживает остальные.
+ * Консюмер работает в собственной сессии, так как сессия с MessageListener не может использоваться другими нитями.
+ */
+public class VtbArtemisReceiver implements MessageListener, AutoCloseable {
+    private final Session session;
+    private final MessageConsumer consumer;
+    private final Map<Object,CompletableFuture<Message>> waiting = new ConcurrentHashMap<> ();
+
+    /**
+     * Создание получателя ответов
+     * @param connection соединение, сессия получателя создаётся в нём
+     * @param replyTo очередь ответов
+     * @throws JMSException при ошибке создания сессии и консюмера
+     */
+    public VtbArtemisReceiver (Connection connection, Destination replyTo) throws JMSException {
+        session = connection.createSession (false, ActiveMQJMSConstants.INDIVIDUAL_ACKNOWLEDGE);
+        try {
+            consumer = session.createConsumer (replyTo);
+            consumer.setMessageListener (this);
+        } catch (JMSException e) {
+            session.close ();
+            throw e;
+        }
+    }
+
+    /**
+     * Метод регистрирует ожидание ответа, вызывать надо ДО отправки запроса, иначе быстрый ответ будет отброшен
+     * @param correlationID корреляционный идентификатор запроса
+     * @param timeout время ожидания ответа, мс
+     * @return ответ, либо завершение с TimeoutException, если ответ не пришёл за timeout
+     * @throws JMSException если корреляционный идентификатор пуст или уже ожидается
+     */
+    public CompletableFuture<Message> expect (Object correlationID, long timeout) throws JMSException {
+        CompletableFuture<Message> future = new CompletableFuture<> ();
+
+        if (correlationID == null)
+            throw new JMSException ("JMSCorrelationID is empty");
+        if (waiting.putIfAbsent (correlationID, future) != null)
+            throw new JMSException ("JMSCorrelationID is already expected: " + correlationID);
+        future.orTimeout (timeout, TimeUnit.MILLISECONDS)
+                .whenComplete ((m, e) -> waiting.remove (correlationID, future));
+        return future;
+    }
+
+    /**
+     * Метод отменяет ожидание ответа, например, если запрос не удалось отправить
+     */
+    public void cancel (Object correlationID){
+        CompletableFuture<Message> future = waiting.remove (correlationID);
+        if (future != null)
+            future.cancel (false);
+    }
+
+    /**
+     * Количество запросов, ожидающих ответа
+     */
+    public int getWaiting (){
+        return waiting.size ();
+    }
+
+    @Override
+    public void onMessage (Message response) {
+        try {
             response.acknowledge ();
-            //определяем, нужен ли нам этот запрос
-            if (rt.isResponseSuitable (response)) {
-                System.out.println ("Ответ от клиента : " + response.getText() + "\n\n");
-                break;
+            //корреляционный идентификатор передаётся свойством, как его устанавливает ReportFields.prepareRequest
+            Object correlationID = response.propertyExists ("JMSCorrelationID")
+                    ?response.getObjectProperty ("JMSCorrelationID"):response.getJMSCorrelationID ();
+            CompletableFuture<Message> future = (correlationID == null)?null:waiting.remove (correlationID);
+
+            if (future == null) {//запоздалый ответ, его запрос уже не ждёт
+                System.out.println ("Client-> Belated response, ignore: " + response);
+                return;
             }
-            System.out.println ("Client-> Belated response, ignore: " + response);
+            future.complete (response);
+        } catch (JMSException e) {
+            System.out.println (e);
+        }
+    }
+
+    /**
+     * Метод закрывает консюмер, все ожидающие запросы завершаются с ошибкой
+     */
+    @Override
+    public void close () throws JMSException {
+        try {
+            session.close ();
+        } finally {
+            JMSException closed = new JMSException ("Receiver is closed");
+            waiting.values ().forEach (f -> f.completeExceptionally (closed));
+            waiting.clear ();
         }
-        //и так долго...
-        while (true);
     }
 }
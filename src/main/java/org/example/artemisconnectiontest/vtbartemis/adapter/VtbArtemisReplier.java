@@ -0,0 +1,148 @@
+package org.example.artemisconnectiontest.vtbartemis.adapter;
+
+import org.example.artemisconnectiontest.utils.PlatzCard;
+import org.example.artemisconnectiontest.utils.RequestID;
+import org.example.artemisconnectiontest.vtbartemis.factories.VtbArtemisConnectionFactory;
+import org.example.artemisconnectiontest.vtbartemis.utils.VtbArtemisSessionPool;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.jms.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Асинхронная отправка ответов сервиса вне нити слушателя. Ответ отправляется в сессии из пула, которую
+ * до возврата использует только отправляющая нить, с CompletionListener: нить не ждёт подтверждения брокера.
+ * Ответы на запросы с указанным брокером (очередь с ::) отправляются через соединение с этим брокером
+ * (PlatzCard.brokerConnection), для каждого брокера свой пул сессий.
+ */
+@Component
+public class VtbArtemisReplier implements DisposableBean {
+    @Autowired
+    private ConnectionFactory connectionFactory;
+    @Autowired
+    private VtbArtemisConnectionFactory vtbConnectionFactory;
+
+    int poolSize = 64;//сессий на соединение
+    long borrowTimeout = 10000;//ожидание свободной сессии, мс
+    private Connection connection;//соединение по умолчанию
+    private final Map<String,Connection> connections = new ConcurrentHashMap<> ();//соединения с брокерами
+    private final Map<Connection,VtbArtemisSessionPool> pools = new ConcurrentHashMap<> ();
+
+    public int getPoolSize (){return poolSize;} public void setPoolSize (int poolSize){this.poolSize = poolSize;}
+
+    synchronized Connection connection () throws JMSException {
+        if (connection == null)
+            connection = connectionFactory.createConnection ();
+        return connection;
+    }
+
+    /**
+     * Соединение для отправки ответа, через брокер запроса, если он указан
+     */
+    Connection connection (RequestID id) throws JMSException {
+        Connection base = connection ();
+        if (id.getBroker () == null)
+            return base;
+        Connection c = connections.get (id.getBroker ());
+        if (c != null)
+            return c;
+        synchronized (this) {
+            c = connections.get (id.getBroker ());
+            if (c == null) {
+                c = PlatzCard.brokerConnection (connectionFactory, vtbConnectionFactory.getTopology_url (), null,
+                        base, id.getBroker ());
+                connections.put (id.getBroker (), (c == null)?base:c);
+            }
+            return (c == null)?base:c;
+        }
+    }
+
+    VtbArtemisSessionPool pool (Connection c) throws JMSException {
+        VtbArtemisSessionPool pool = pools.get (c);
+        if (pool != null)
+            return pool;
+        synchronized (pools) {
+            pool = pools.get (c);
+            if (pool == null)
+                pools.put (c, pool = new VtbArtemisSessionPool (c, poolSize));
+            return pool;
+        }
+    }
+
+    /**
+     * Метод отправляет ответ на запрос
+     * @param id идентификатор запроса
+     * @param response текст ответа в UTF-8
+     * @return подтверждение получения ответа брокером
+     */
+    public CompletableFuture<Void> reply (RequestID id, byte response[]){
+        CompletableFuture<Void> sent = new CompletableFuture<> ();
+        VtbArtemisSessionPool pool = null;
+        VtbArtemisSessionPool.Pooled pooled = null;
+
+        try {
+            pool = pool (connection (id));
+            pooled = pool.borrow (borrowTimeout);
+            Message message = id.prepareResponse (pooled.getSession ().createTextMessage (new String (response, StandardCharsets.UTF_8)));
+            pooled.getProducer ().send (id.getDestination (), message, DeliveryMode.PERSISTENT, 4, 60000,
+                    new CompletionListener () {
+                @Override
+                public void onCompletion (Message message) {
+                    sent.complete (null);
+                }
+                @Override
+                public void onException (Message message, Exception e) {
+                    sent.completeExceptionally (e);
+                }
+            });
+            pool.release (pooled);
+        } catch (JMSException | RuntimeException e) {
+            if (pooled != null)
+                pool.invalidate (pooled);//ошибка отправки одного сообщения, заменяем только эту сессию
+            if (id.getBroker () != null && e instanceof JMSException && broken ((JMSException) e))
+                drop (id.getBroker ());//при следующей отправке брокер будет найден заново
+            sent.completeExceptionally (e);
+        }
+        return sent;
+    }
+
+    /**
+     * Признак ошибки соединения, а не отдельной отправки: соединение или сессия закрыты, либо брокер недоступен.
+     * Нехватка сессий в пуле (borrow по таймауту) и ошибки отправки одного сообщения соединение не разрывают
+     */
+    static boolean broken (JMSException e){
+        return e instanceof javax.jms.IllegalStateException || PlatzCard.unreachable (e);
+    }
+
+    /**
+     * Метод закрывает соединение с брокером после ошибки соединения, ответы в работе на нём не будут отправлены
+     */
+    void drop (String broker){
+        Connection c = connections.remove (broker);
+        if (c == null || c == connection)
+            return;
+        VtbArtemisSessionPool pool = pools.remove (c);
+        if (pool != null)
+            pool.close ();
+        try {
+            c.close ();
+        } catch (JMSException e) {//соединение уже разорвано
+        }
+    }
+
+    @Override
+    public void destroy () throws JMSException {
+        pools.values ().forEach (VtbArtemisSessionPool::close);
+        for (Connection c : connections.values ()) {
+            if (c != connection)
+                c.close ();
+        }
+        if (connection != null)
+            connection.close ();
+    }
+}
@@ -4,14 +4,13 @@ import org.example.artemisconnectiontest.utils.PlatzCard;
 import org.example.artemisconnectiontest.utils.ResponseTemplate;
 import org.example.artemisconnectiontest.vtbartemis.utils.VtbArtemisJmsUtils;
 import org.example.artemisconnectiontest.vtbartemis.factories.VtbArtemisConnectionFactory;
+import org.example.artemisconnectiontest.vtbartemis.utils.VtbRequestJournal;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import javax.jms.*;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 @Component
 public class VtbArtemisSavedRequestHandler implements Runnable {
@@ -19,7 +18,8 @@ public class VtbArtemisSavedRequestHandler implements Runnable {
     private VtbArtemisJmsUtils artemisJmsUtils;
     @Autowired
     private VtbArtemisConnectionFactory connectionFactory;
-    File temp = new File (System.getProperty ("java.io.tmpdir"));
+    @Autowired
+    private VtbRequestJournal journal;
 
     @Override
     public void run () {
@@ -37,54 +37,36 @@ public class VtbArtemisSavedRequestHandler implements Runnable {
             }
             //тут обрабатываем сохранённые запросы.
             //ошибка может возникнуть как на обработке, так и на отправке ответа.
-            //если есть *.requestId, значит сообщение получено, если есть *.response, значит ответ не отправлен
-            //если есть *.requestId и нет *.response, значит либо идёт обработка, либо она прервалась
-            //если есть *.requestId и нет *.response через минуту, например, то обработка прервалась, надо повторять
+            //если в журнале есть незавершённый запрос, значит сообщение получено, если есть ответ, значит ответ не отправлен
+            //если есть запрос и нет ответа, значит либо идёт обработка, либо она прервалась
+            //если есть запрос и нет ответа через минуту, например, то обработка прервалась, надо повторять
 
             //досылаем ответы на запросы, которые не были отправлены по каким либо причинам.
-            //соберём названия файлов идентификаторов запросов в массив
-            File list[] = temp.listFiles (new FilenameFilter() {
-                @Override
-                public boolean accept (File dir, String name) {
-                    return name.endsWith (".requestId");
-                }
-            });
+            //индекс журнала выдаёт только незавершённые запросы, срок восстановления которых наступил:
+            //запрос без ответа обрабатывается дольше 15 секунд (отсекаем параллельную обработку),
+            //либо ответ не отправлен за 10 секунд (отсекаем параллельную отправку)
+            List<VtbRequestJournal.Pending> list = journal.due ();
 
-            if (list == null || list.length == 0) {
+            if (list.isEmpty ()) {
                 System.out.println("Thread working: Нечего досылать");
                 continue;//ничего не надо досылать
             }
 
-            try {//для каждого файла с идентификатором запроса
-                for (File t : list) {
-                    //считаем идентификатор из временного файла
-                    ResponseTemplate idtemp = ResponseTemplate.from (t);
-
-                    if (idtemp == null) {
-                        t.delete ();
-                        continue;
-                    }
-                    boolean thisWOrk = false;
+            try {//для каждого незавершённого запроса
+                for (VtbRequestJournal.Pending t : list) {
+                    ResponseTemplate idtemp = ResponseTemplate.of (t.getId ());
                     //проверим наличие ответа
-                    File responseF = new File (idtemp.getid () + ".response");
+                    byte responseF[] = t.getResponse ();
 
-                    if (responseF.exists () == false){
-                        //ответа не было, обработка сорвалась, либо ещё не завершилась
-                        //проверим, что файл обрабатывается дольше 15 секунд, чтобы отсечь параллельную обработку
-                        if (t.lastModified () + 15000 > System.currentTimeMillis ())
-                            continue;//ещё рано, может идти параллельная обработка
+                    if (responseF == null){
+                        //ответа не было, обработка сорвалась
                         System.out.println ("Service-> Restored request: " + idtemp);
                         //запускаем повторную обработку запроса
                         Thread.sleep ((long)(Math.random ()*10000));
-                        //записываем результаты в файл
-                        FileOutputStream o = new FileOutputStream (responseF);
-                        o.write (("Service response " + idtemp.getid ()).getBytes (StandardCharsets.UTF_8));
-                        o.close ();
-                        //ставим флаг о том, что обработка была в этой нити
-                        thisWOrk = true;
+                        //записываем результаты в журнал
+                        responseF = ("Service response " + idtemp.getid ()).getBytes (StandardCharsets.UTF_8);
+                        journal.respond (idtemp.getid (), responseF);
                     }
-                    if (thisWOrk == false && responseF.lastModified () + 10000 > System.currentTimeMillis ())
-                        continue;//ещё рано, может идти параллельная отправка
                     //создание постоянного соединения важно для реализации HA
                     //так как переключаются на резервный брокер с сохранением сессий
                     //только те клиенты, у которых есть действующие HA-соединения
@@ -117,15 +99,13 @@ public class VtbArtemisSavedRequestHandler implements Runnable {
                         connection = artemisJmsUtils.getConnection();
                     if (session == null)
                         session = connection.createSession (false, Session.AUTO_ACKNOWLEDGE);
-                    // тут надо прочесть файл ответа, но в примере это делать необязательно
-                    //отправляем ответ с использованием идентификатора
+                    //отправляем сохранённый ответ с использованием идентификатора
                     session.createProducer (idtemp.getDestination ())
-                            .send (idtemp.prepareResponse ((response = session.createTextMessage ("Service response " + idtemp.getid ()))),
+                            .send (idtemp.prepareResponse ((response = session.createTextMessage (new String (responseF, StandardCharsets.UTF_8)))),
                                     DeliveryMode.PERSISTENT, 4, 60000);
 
                     System.out.println ("Service-> Restored response successfully sent");
-                    t.delete ();
-                    responseF.delete ();
+                    journal.complete (idtemp.getid ());
                 }
             } catch (Exception e) {
                 System.out.println (e);
@@ -1,42 +1,236 @@
 package org.example.artemisconnectiontest.vtbartemis.adapter;
 
+import jakarta.annotation.PreDestroy;
 import org.example.artemisconnectiontest.vtbartemis.utils.Test;
 import org.example.artemisconnectiontest.utils.ReportFields;
 import org.example.artemisconnectiontest.vtbartemis.utils.VtbArtemisJmsUtils;
+import org.example.artemisconnectiontest.vtbartemis.utils.VtbArtemisSessionPool;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import javax.jms.*;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Клиент запрос-ответ. Запросы отправляются асинхронно (JMS 2.0 CompletionListener, брокер подтверждает
+ * отправку через окно подтверждений confirmationWindowSize), ответ ждёт VtbArtemisReceiver. Одновременно
+ * в работе может быть до window запросов, поэтому пропускная способность ограничена брокером и сервисом,
+ * а не суммой времени отправки и обработки каждого запроса.
+ */
 @Component
 public class VtbArtemisSender {
     @Autowired
     private VtbArtemisJmsUtils jmsUtils;
 
-    public void send() throws JMSException {
+    int window = 16;//запросов одновременно в работе
+    long timeout = 60000;//ожидание ответа, мс
+    private volatile Semaphore inFlight = new Semaphore (window);
+    //префикс корреляционного идентификатора отличает запросы этого запуска от запоздалых ответов прошлых запусков
+    private final String prefix = "Correlation ID-" + Long.toString (System.currentTimeMillis (), 36) + "-";
+    private final AtomicLong sequence = new AtomicLong ();
+    //отправка может ждать места в окне, поэтому выполняется в виртуальных нитях, а не в нитях вызывающего
+    private final ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor ();
+    private final Map<String,Exchange> outstanding = new ConcurrentHashMap<> ();//запросы, ожидающие ответа
 
-        for (int i = 0; i < 5; i++) {
+    public int getWindow (){return window;} public void setWindow (int window){this.window = window; inFlight = new Semaphore (window);}
+    public long getTimeout (){return timeout;} public void setTimeout (long timeout){this.timeout = timeout;}
 
-            //создаём помощника формирования заголовков запроса
-            ReportFields rt = jmsUtils.getReportFields();
+    /**
+     * Остановка отправки: новые пакеты запросов не принимаются, начатые ждём до timeout
+     * (отправка может ждать места в окне или сессии из пула), затем прерываем
+     */
+    @PreDestroy
+    public void shutdown () throws InterruptedException {
+        senders.shutdown ();
+        if (senders.awaitTermination (timeout, TimeUnit.MILLISECONDS) == false)
+            senders.shutdownNow ();
+    }
 
-            jmsUtils.getConnection().start();
+    /**
+     * Запрос в работе, время в наносекундах System.nanoTime ()
+     */
+    public static class Exchange {
+        final String correlationID;
+        final String request;
+        final long started;//начало отправки
+        volatile long sent;//брокер подтвердил получение запроса
+        volatile long replied;//получен ответ
+        volatile long delivered;//получен отчёт о доставке запроса сервису
+        final CompletableFuture<Void> confirmed = new CompletableFuture<> ();
+        final CompletableFuture<ReportFields> report = new CompletableFuture<> ();
+        CompletableFuture<Message> reply;
 
-            Test test = Test.builder().additionalData(LocalDateTime.now()).build();
-            TextMessage textMessage = jmsUtils.getSession().createTextMessage(test.toString());
+        Exchange (String correlationID, String request){
+            this.correlationID = correlationID;
+            this.request = request;
+            this.started = System.nanoTime ();
+        }
+        public String getCorrelationID (){return correlationID;}
+        public String getRequest (){return request;}
+        public long getStarted (){return started;}
+        public long getSent (){return sent;}
+        public long getReplied (){return replied;}
+        public long getDelivered (){return delivered;}
+        /**
+         * Подтверждение отправки брокером
+         */
+        public CompletableFuture<Void> getConfirmed (){return confirmed;}
+        /**
+         * Ответ сервиса, либо завершение с TimeoutException
+         */
+        public CompletableFuture<Message> getReply (){return reply;}
+        /**
+         * Отчёт о доставке запроса, приходит, если сервис получил запрос до получения ответа
+         */
+        public CompletableFuture<ReportFields> getReport (){return report;}
+    }
+
+    /**
+     * Метод асинхронно отправляет запрос. Если в работе уже window запросов, метод ждёт завершения одного из них
+     * @param text текст запроса
+     * @return запрос в работе
+     * @throws JMSException при ошибке отправки
+     * @throws InterruptedException если ожидание места в окне прервано
+     */
+    public Exchange request (String text) throws JMSException, InterruptedException {
+        return request (jmsUtils.getRequestDestination (), text);
+    }
+
+    /**
+     * Метод асинхронно отправляет запрос в указанное назначение
+     * @param destination очередь или адрес запросов
+     * @param text текст запроса
+     * @return запрос в работе
+     * @throws JMSException при ошибке отправки
+     * @throws InterruptedException если ожидание места в окне прервано
+     */
+    public Exchange request (Destination destination, String text) throws JMSException, InterruptedException {
+        Semaphore permits = inFlight;
+        permits.acquire ();
+
+        Exchange e = new Exchange (prefix + sequence.incrementAndGet (), text);
+        VtbArtemisReceiver receiver = jmsUtils.getReceiver ();
+        CompletableFuture<Message> expected;
+        try {
+            //ожидание ответа регистрируем до отправки, чтобы не пропустить быстрый ответ
+            expected = receiver.expect (e.correlationID, timeout);
+            outstanding.put (e.correlationID, e);
+            //ответ выдаётся после отметки времени, чтобы время было доступно зависимым действиям
+            e.reply = expected.whenComplete ((m, x) -> {
+                e.replied = System.nanoTime ();
+                outstanding.remove (e.correlationID, e);
+                permits.release ();
+            });
+        } catch (JMSException x) {
+            permits.release ();
+            throw x;
+        }
+        VtbArtemisSessionPool.Pooled pooled = null;
+        try {
+            //сессия из пула используется только этой нитью до возврата в пул
+            pooled = jmsUtils.getSessionPool ().borrow (timeout);
+            TextMessage message = pooled.getSession ().createTextMessage (text);
+            ReportFields rt = jmsUtils.getReportFields ();
+            synchronized (rt) {//заголовки запроса общие для всех нитей
+                rt.setCorrelationID (e.correlationID);
+                rt.prepareRequest (message);
+            }
+            pooled.getProducer ().send (destination, message, DeliveryMode.PERSISTENT,
+                    4, 60000, new CompletionListener () {//сообщение обрабатывается 10 секунд, в очереди может быть 6 секунд
+                @Override
+                public void onCompletion (Message message) {
+                    e.sent = System.nanoTime ();
+                    e.confirmed.complete (null);
+                }
+                @Override
+                public void onException (Message message, Exception x) {
+                    e.sent = System.nanoTime ();
+                    e.confirmed.completeExceptionally (x);
+                    expected.completeExceptionally (x);//ответа не будет
+                }
+            });
+            jmsUtils.getSessionPool ().release (pooled);
+        } catch (JMSException | RuntimeException x) {
+            if (pooled != null)
+                jmsUtils.getSessionPool ().invalidate (pooled);
+            e.confirmed.completeExceptionally (x);
+            expected.completeExceptionally (x);
+            throw x;
+        }
+        return e;
+    }
 
-            //каждый новый запрос идентифицируем новым уникальным значением
-            rt.setCorrelationID("Correlation ID-" + i);
-            rt.prepareRequest(textMessage);
+    /**
+     * Метод отмечает получение отчёта о доставке запроса, отчёты принимает VtbArtemisListener.report
+     * @param report отчёт
+     */
+    public void report (ReportFields report){
+        Exchange e = (report.getCorrelationID () == null)?null:outstanding.get (report.getCorrelationID ().toString ());
 
-            jmsUtils.getMessageProducer().send(textMessage, DeliveryMode.PERSISTENT,
-                    4, 60000);//сообщение обрабатывается 10 секунд, в очереди может быть 6 секунд
+        if (e == null || report.getDelivered () == false)
+            return;
+        e.delivered = System.nanoTime ();
+        e.report.complete (report);
+    }
 
-            System.out.println("Сообщение отправленное сервису :\n" + textMessage.getText());
+    /**
+     * Метод отправляет count тестовых запросов без блокировки вызывающей нити
+     * @param count число запросов
+     * @return запросы, когда на каждый получен ответ, истёк таймаут или произошла ошибка
+     */
+    public CompletableFuture<List<Exchange>> sendAsync (int count){
+        return CompletableFuture.supplyAsync (() -> {
+            List<Exchange> requests = new ArrayList<> ();
+            try {
+                for (int i = 0; i < count; i++) {
+                    Test test = Test.builder ().additionalData (LocalDateTime.now ()).build ();
+                    requests.add (request (test.toString ()));
+                }
+            } catch (JMSException e) {
+                throw new CompletionException (e);
+            } catch (InterruptedException e) {
+                Thread.currentThread ().interrupt ();
+                throw new CompletionException (e);
+            }
+            return requests;
+        }, senders).thenCompose (requests -> CompletableFuture.allOf (requests.stream ()
+                        .map (e -> e.getReply ().handle ((m, x) -> null)).toArray (CompletableFuture[]::new))
+                .thenApply (v -> requests));
+    }
 
-            VtbArtemisReceiver artemisReceiver = new VtbArtemisReceiver();
-            artemisReceiver.receiveMassage(jmsUtils.getMessageConsumer(), rt);
+    public void send() throws JMSException, InterruptedException {
+        List<Exchange> requests = new ArrayList<>();
+
+        jmsUtils.getConnection().start();
+        //запросы уходят сразу все, ответы приходят по мере обработки
+        for (int i = 0; i < 5; i++) {
+            Test test = Test.builder().additionalData(LocalDateTime.now()).build();
+            requests.add(request(test.toString()));
+        }
+        for (Exchange e : requests) {
+            System.out.println("Сообщение отправленное сервису :\n" + e.getRequest());
+            //запоздалые ответы на прошлые запросы отбрасывает получатель, селектор не нужен
+            try {
+                System.out.println ("Ответ от клиента : " + ((TextMessage) e.getReply().get()).getText() + "\n\n");
+            } catch (ExecutionException x) {
+                if (x.getCause() instanceof TimeoutException)
+                    System.out.println ("Ответ от клиента : нет ответа повтори\n\n");
+                else
+                    System.out.println (x.getCause());
+            }
         }
     }
 }
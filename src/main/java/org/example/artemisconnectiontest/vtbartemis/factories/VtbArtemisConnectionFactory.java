@@ -112,7 +112,9 @@ public class VtbArtemisConnectionFactory {
         //уменьшаем период проверки коннекта, это позволит быстрее восстанавливать соединения и не терять сессию
         cf.setClientFailureCheckPeriod (100);
         //большое окно подтверждения позволяет долго работать без коннекта к брокеру, можно установить в url параметром confirmationWindowSize=
-        //cf.setConfirmationWindowSize (1024 * 1024 * 64);
+        //окно подтверждения нужно асинхронной отправке с CompletionListener (VtbArtemisSender.request),
+        //без него брокер не сообщает о получении сообщений, отправленных без блокировки
+        cf.setConfirmationWindowSize (1024 * 1024);
         //окно консюмера, столько один листнер забирает из очереди, можно установить в url параметром consumerWindowSize=
         cf.setConsumerWindowSize (1024 * 1024);//это значение по умолчанию
         cf.setEnableSharedClientID (true);//несколько сессий с одним идентификатором
@@ -1,9 +1,9 @@
 package org.example.artemisconnectiontest.vtbartemis.utils;
 
 import lombok.Getter;
-import org.apache.activemq.artemis.api.jms.ActiveMQJMSConstants;
 import org.apache.activemq.artemis.jms.client.ActiveMQDestination;
 import org.example.artemisconnectiontest.utils.ReportFields;
+import org.example.artemisconnectiontest.vtbartemis.adapter.VtbArtemisReceiver;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -16,36 +16,39 @@ public class VtbArtemisJmsUtils implements InitializingBean {
     @Autowired
     ConnectionFactory connectionFactory;
     private Connection connection;
-    private Session session;
+    private int poolSize = 16;//сессий для одновременной отправки, соответствует числу одновременных запросов
+    private VtbArtemisSessionPool sessionPool;//сессии с продюсерами, по одной на нить отправки
+    private Destination requestDestination;
     private ReportFields reportFields;
-    private MessageProducer messageProducer;
-    private MessageConsumer messageConsumer;
+    private VtbArtemisReceiver receiver;//асинхронный получатель ответов очереди reportFields.getReplyTo ()
 
     @Override
     public void afterPropertiesSet() {
         //объекты JMS, использовать JmsTemplate не годится, так как это приводит к потере сообщений
         try {
 
-            this.connection = connectionFactory.createConnection();
-            this.session = connection.createSession(false, ActiveMQJMSConstants.INDIVIDUAL_ACKNOWLEDGE);
+            if (connection == null)
+                this.connection = connectionFactory.createConnection();
+            if (sessionPool == null)
+                this.sessionPool = new VtbArtemisSessionPool(connection, poolSize);
 
-            this.messageProducer = session.createProducer(
-                    ActiveMQDestination.createDestination("DC.fbti-dev.FTI.FTI_TIM.SEARCH_CLIENT.REQ.Q",
-                            ActiveMQDestination.TYPE.QUEUE));
+            this.requestDestination = ActiveMQDestination.createDestination("DC.fbti-dev.FTI.FTI_TIM.SEARCH_CLIENT.REQ.Q",
+                    ActiveMQDestination.TYPE.QUEUE);
 
             this.reportFields = new ReportFields("DC.fbti-dev.FTI.FTI_TIM.UPDATE_ACCOUNT.REQ.Q:" +
                     ":DC.fbti-dev.FTI.FTI_TIM.UPDATE_ACCOUNT.REQ.Q", "Correlation ID-", true)
                     .putReportAddress("DC.fbti-dev.FTI_TIM.IGTCLOSENOTIF.REQ.Q");
 
-            this.messageConsumer = session.createConsumer(reportFields.getReplyToDestination());
+            if (receiver != null)
+                receiver.close();
+            this.receiver = new VtbArtemisReceiver(connection, reportFields.getReplyToDestination());
+            connection.start();
 
             System.out.println("Artemis utils complete/reload!");
         } catch (JMSException e) {
             System.err.println (e);
-            //оставляем только соединение
-            session = null;
-            messageProducer = null;
-            messageConsumer = null;
+            //оставляем только соединение и пул сессий
+            receiver = null;
             afterPropertiesSet();
         }
     }
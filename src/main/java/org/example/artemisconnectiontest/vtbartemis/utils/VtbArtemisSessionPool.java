@@ -0,0 +1,138 @@
+package org.example.artemisconnectiontest.vtbartemis.utils;
+
+import org.apache.activemq.artemis.api.jms.ActiveMQJMSConstants;
+
+import javax.jms.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пул сессий с анонимными продюсерами одного соединения. Сессия JMS не допускает использования несколькими нитями,
+ * поэтому каждая нить берёт сессию из пула (borrow), работает с ней одна и возвращает (release).
+ * Размер пула ограничивает число одновременно используемых сессий, недостающие сессии создаются по требованию.
+ * Ответы принимает общий для всех сессий VtbArtemisReceiver, поэтому консюмеры в пуле не нужны.
+ * После разрыва соединения (ExceptionListener), а также сессии, вернувшиеся с ошибкой (invalidate),
+ * закрываются, новые сессии создаются при следующем запросе.
+ */
+public class VtbArtemisSessionPool implements AutoCloseable {
+    private final Connection connection;
+    private final int size;
+    private final Semaphore permits;
+    private final BlockingQueue<Pooled> idle = new LinkedBlockingQueue<> ();
+    private volatile int generation;//поколение сессий, увеличивается при разрыве соединения
+    private volatile boolean closed;
+
+    /**
+     * Сессия пула с продюсером без адреса назначения
+     */
+    public static class Pooled {
+        final Session session;
+        final MessageProducer producer;
+        final int generation;
+
+        Pooled (Session session, MessageProducer producer, int generation){
+            this.session = session;
+            this.producer = producer;
+            this.generation = generation;
+        }
+        public Session getSession (){return session;}
+        public MessageProducer getProducer (){return producer;}
+    }
+
+    /**
+     * @param connection соединение, сессии создаются в нём
+     * @param size наибольшее число одновременно используемых сессий
+     * @throws JMSException при ошибке установки ExceptionListener
+     */
+    public VtbArtemisSessionPool (Connection connection, int size) throws JMSException {
+        this.connection = connection;
+        this.size = size;
+        this.permits = new Semaphore (size);
+        ExceptionListener previous = connection.getExceptionListener ();
+        connection.setExceptionListener (e -> {
+            reset ();
+            if (previous != null)
+                previous.onException (e);
+        });
+    }
+
+    public int getSize (){return size;}
+
+    /**
+     * Метод выдаёт сессию, ожидая освобождения, если все size сессий заняты
+     * @param timeout ожидание свободной сессии, мс
+     * @return сессия, которую надо вернуть через release или invalidate
+     * @throws JMSException если свободной сессии нет за timeout, либо сессию не удалось создать
+     */
+    public Pooled borrow (long timeout) throws JMSException {
+        try {
+            if (permits.tryAcquire (timeout, TimeUnit.MILLISECONDS) == false)
+                throw new JMSException ("No free session in " + size + " for " + timeout + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+            throw new JMSException ("Interrupted");
+        }
+        try {
+            if (closed)
+                throw new JMSException ("Session pool is closed");
+            for (Pooled p = idle.poll (); p != null; p = idle.poll ()) {
+                if (p.generation == generation)
+                    return p;
+                close (p);//сессия разорванного соединения
+            }
+            Session session = connection.createSession (false, ActiveMQJMSConstants.INDIVIDUAL_ACKNOWLEDGE);
+            try {
+                return new Pooled (session, session.createProducer (null), generation);
+            } catch (JMSException e) {
+                session.close ();
+                throw e;
+            }
+        } catch (JMSException | RuntimeException e) {
+            permits.release ();
+            throw e;
+        }
+    }
+
+    /**
+     * Метод возвращает исправную сессию в пул
+     */
+    public void release (Pooled p){
+        if (closed || p.generation != generation)
+            close (p);
+        else
+            idle.add (p);
+        permits.release ();
+    }
+
+    /**
+     * Метод закрывает сессию, с которой произошла ошибка, вместо неё будет создана новая
+     */
+    public void invalidate (Pooled p){
+        close (p);
+        permits.release ();
+    }
+
+    /**
+     * Метод закрывает свободные сессии, занятые сессии закроются при возврате
+     */
+    public synchronized void reset (){
+        generation++;
+        for (Pooled p = idle.poll (); p != null; p = idle.poll ())
+            close (p);
+    }
+
+    static void close (Pooled p){
+        try {
+            p.session.close ();
+        } catch (JMSException | RuntimeException e) {//сессия уже неработоспособна
+        }
+    }
+
+    @Override
+    public void close (){
+        closed = true;
+        reset ();
+    }
+}
@@ -0,0 +1,100 @@
+package org.example.artemisconnectiontest.vtbartemis.utils;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Гистограмма задержек по образцу HdrHistogram: значения в микросекундах раскладываются по корзинам,
+ * ширина которых растёт вместе со значением (по 64 корзины на каждую степень двойки), поэтому относительная
+ * погрешность не превышает 1.6% во всём диапазоне. Запись без блокировок, из любых нитей.
+ */
+public class VtbLatencyHistogram {
+    static final int SUB = 64;//корзин на степень двойки
+    static final int LINEAR = 2 * SUB;//значения меньше 128 хранятся точно
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray (LINEAR + (64 - 7) * SUB);
+    private final AtomicLong total = new AtomicLong ();
+    private final AtomicLong sum = new AtomicLong ();
+    private final LongAccumulator max = new LongAccumulator (Math::max, 0);
+
+    public VtbLatencyHistogram (String name){
+        this.name = name;
+    }
+
+    static int index (long v){
+        if (v < LINEAR)
+            return (int) v;
+        int shift = 63 - Long.numberOfLeadingZeros (v) - 6;//v >> shift в [64, 128)
+        return LINEAR + (shift - 1) * SUB + (int) (v >> shift) - SUB;
+    }
+
+    /**
+     * Наибольшее значение корзины
+     */
+    static long highest (int index){
+        if (index < LINEAR)
+            return index;
+        int shift = (index - LINEAR) / SUB + 1;
+        long sub = (index - LINEAR) % SUB + SUB;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Запись задержки
+     * @param nanos задержка в наносекундах, отрицательные значения считаются нулевыми
+     */
+    public void record (long nanos){
+        long micros = Math.max (0, nanos / 1000);
+        counts.incrementAndGet (index (micros));
+        total.incrementAndGet ();
+        sum.addAndGet (micros);
+        max.accumulate (micros);
+    }
+
+    public long getTotalCount (){
+        return total.get ();
+    }
+
+    /**
+     * Значение процентиля в микросекундах
+     * @param percentile процентиль от 0 до 100
+     */
+    public long getValueAtPercentile (double percentile){
+        long count = total.get ();
+        if (count == 0)
+            return 0;
+        long target = Math.max (1, (long) Math.ceil (percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length (); i++) {
+            seen += counts.get (i);
+            if (seen >= target)
+                return Math.min (highest (i), max.get ());
+        }
+        return max.get ();
+    }
+
+    /**
+     * Распределение процентилей в миллисекундах в формате, близком к HdrHistogram outputPercentileDistribution
+     */
+    public String percentiles (){
+        StringBuilder b = new StringBuilder ();
+        long count = total.get ();
+
+        b.append (name).append ('\n');
+        b.append (String.format (Locale.ROOT, "%12s %14s %10s %14s%n", "Value(ms)", "Percentile", "TotalCount", "1/(1-Percentile)"));
+        for (double p : new double[] {0, 50, 75, 90, 95, 99, 99.9, 99.99, 100}) {
+            long v = getValueAtPercentile (p);
+            long below = 0;
+            for (int i = 0; i <= index (v) && i < counts.length (); i++)
+                below += counts.get (i);
+            b.append (String.format (Locale.ROOT, "%12.3f %14.6f %10d %14s%n", v / 1000.0, p / 100, below,
+                    (p < 100)?String.format (Locale.ROOT, "%.2f", 100 / (100 - p)):"inf"));
+        }
+        b.append (String.format (Locale.ROOT, "#[Mean = %.3f, Max = %.3f, Total count = %d]%n",
+                (count == 0)?0.0:sum.get () / 1000.0 / count, max.get () / 1000.0, count));
+        return b.toString ();
+    }
+}
@@ -0,0 +1,139 @@
+package org.example.artemisconnectiontest.vtbartemis.utils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Индекс запросов журнала в памяти: незавершённые запросы, завершённые запросы за последние window мс
+ * (для отсечения повторно доставленных запросов) и расписание восстановления незавершённых запросов.
+ * Индекс заполняется журналом при записи и при старте из сегментов журнала, поэтому проверка повторов
+ * и выбор запросов для восстановления не обращаются к файловой системе.
+ */
+public class VtbPendingIndex {
+    long window = 10 * 60 * 1000;//сколько помнить завершённые запросы, мс
+    long processTimeout = 15000;//запрос без ответа дольше этого срока обрабатывается повторно, мс
+    long sendTimeout = 10000;//ответ, не отправленный за этот срок, досылается, мс
+    long retryPeriod = 2000;//повтор восстановления, если запрос так и не завершён, мс
+
+    /**
+     * Завершённый запрос
+     */
+    static class Completed {
+        final String key;
+        final long time;//время завершения
+        volatile long segment = -1;//сегмент журнала с признаком завершения
+
+        Completed (String key, long time){
+            this.key = key;
+            this.time = time;
+        }
+    }
+
+    record Due (long at, VtbRequestJournal.Pending pending) {}
+
+    final Map<String,VtbRequestJournal.Pending> pending = new ConcurrentHashMap<> ();
+    final Map<String,Completed> completed = new ConcurrentHashMap<> ();
+    private final Queue<Completed> aging = new ConcurrentLinkedQueue<> ();//завершённые в порядке завершения
+    private final PriorityBlockingQueue<Due> schedule = new PriorityBlockingQueue<> (64, Comparator.comparingLong (Due::at));
+
+    /**
+     * Метод добавляет новый запрос
+     * @return false, если запрос уже есть среди незавершённых, либо недавно завершён (повторное получение)
+     */
+    boolean add (VtbRequestJournal.Pending p){
+        if (isCompleted (p.key) || pending.putIfAbsent (p.key, p) != null)
+            return false;
+        schedule.add (new Due (p.requested + processTimeout, p));
+        return true;
+    }
+
+    VtbRequestJournal.Pending get (String key){
+        return pending.get (key);
+    }
+
+    void remove (VtbRequestJournal.Pending p){
+        pending.remove (p.key, p);
+    }
+
+    /**
+     * Ответ на запрос сохранён, досылка ответа планируется через sendTimeout
+     */
+    void responded (VtbRequestJournal.Pending p){
+        schedule.add (new Due (p.responded + sendTimeout, p));
+    }
+
+    /**
+     * Метод переводит запрос в завершённые
+     * @return завершённый запрос, либо null, если запрос не был незавершённым
+     */
+    Completed complete (String key, long time){
+        VtbRequestJournal.Pending p = pending.remove (key);
+        if (p == null)
+            return null;
+        return completed (key, time);
+    }
+
+    /**
+     * Метод запоминает завершённый запрос, завершённые раньше window забываются
+     */
+    Completed completed (String key, long time){
+        Completed c = new Completed (key, time);
+        completed.put (key, c);
+        aging.add (c);
+        expire (System.currentTimeMillis ());
+        return c;
+    }
+
+    /**
+     * Признак недавнего завершения запроса
+     */
+    public boolean isCompleted (String key){
+        expire (System.currentTimeMillis ());
+        return completed.containsKey (key);
+    }
+
+    void expire (long now){
+        for (Completed c = aging.peek (); c != null && c.time + window < now; c = aging.peek ()) {
+            if (aging.remove (c))
+                completed.remove (c.key, c);
+        }
+    }
+
+    /**
+     * Незавершённые запросы
+     */
+    public Collection<VtbRequestJournal.Pending> pending (){
+        return List.copyOf (pending.values ());
+    }
+
+    /**
+     * Незавершённые запросы, срок восстановления которых наступил: без ответа дольше processTimeout,
+     * либо с ответом, не отправленным за sendTimeout. Выданные запросы повторно выдаются через retryPeriod,
+     * если так и не будут завершены
+     * @param now текущее время
+     * @return запросы для восстановления
+     */
+    public List<VtbRequestJournal.Pending> due (long now){
+        List<VtbRequestJournal.Pending> result = new ArrayList<> ();
+        Set<VtbRequestJournal.Pending> seen = Collections.newSetFromMap (new IdentityHashMap<> ());
+
+        for (Due d = schedule.peek (); d != null && d.at () <= now; d = schedule.peek ()) {
+            if (schedule.remove (d) == false)
+                continue;
+            VtbRequestJournal.Pending p = d.pending ();
+            if (pending.get (p.key) != p || seen.add (p) == false)
+                continue;//запрос завершён, либо уже выдан
+            long at = (p.response == null)?p.requested + processTimeout:p.responded + sendTimeout;
+            if (at > now) {//ответ сохранён после планирования
+                schedule.add (new Due (at, p));
+                continue;
+            }
+            result.add (p);
+        }
+        for (VtbRequestJournal.Pending p : result)
+            schedule.add (new Due (now + retryPeriod, p));
+        return result;
+    }
+}
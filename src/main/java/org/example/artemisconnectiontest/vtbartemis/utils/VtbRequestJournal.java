@@ -0,0 +1,468 @@
+package org.example.artemisconnectiontest.vtbartemis.utils;
+
+import org.example.artemisconnectiontest.utils.RequestID;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал сохранённых запросов и ответов сервиса вместо пары временных файлов на каждый запрос.
+ * Журнал состоит из сегментов journal-N.log, записи только дописываются:
+ *  REQUEST - запрос получен (RequestID в двоичном формате), аналог файла .requestId;
+ *  RESPONSE - ответ сформирован, аналог файла .response;
+ *  DONE - ответ отправлен (признак завершения), аналог удаления обоих файлов.
+ * Записи от всех нитей пишет одна нить журнала, сброс на диск (force) выполняется один раз на группу записей,
+ * вызывающий ждёт сброса своей записи. Незавершённые и недавно завершённые запросы хранятся в индексе
+ * в памяти (VtbPendingIndex) и восстанавливаются из сегментов при старте. Фоновое уплотнение переносит незавершённые
+ * записи и признаки завершения из окна индекса из самого старого сегмента в текущий и удаляет старый сегмент.
+ * Каждая запись: длина (int), тип (byte), время (long), данные, CRC32 - повреждённый хвост сегмента отбрасывается.
+ */
+@Component
+public class VtbRequestJournal implements InitializingBean, DisposableBean {
+    String directory = System.getProperty ("java.io.tmpdir") + File.separator + "vtb-journal";//каталог сегментов
+    long segmentSize = 16 * 1024 * 1024;//размер сегмента, после которого начинается новый
+    long compactPeriod = 10000;//период уплотнения, мс
+
+    static final byte REQUEST = 1, RESPONSE = 2, DONE = 3;
+    static final int HEADER = 4 + 1 + 8, TRAILER = 4;
+
+    /**
+     * Незавершённый запрос
+     */
+    public static class Pending {
+        final RequestID id;
+        final String key;
+        final long requested;//время сохранения запроса
+        volatile byte[] response;//сохранённый ответ, null - ответа нет
+        volatile long responded;//время сохранения ответа
+        volatile long requestSegment = -1, responseSegment = -1;//сегменты, в которых лежат записи
+
+        Pending (RequestID id, long requested){
+            this.id = id;
+            this.key = id.getid ();
+            this.requested = requested;
+        }
+        public RequestID getId (){return id;}
+        public long getRequested (){return requested;}
+        public byte[] getResponse (){return response;}
+        public long getResponded (){return responded;}
+    }
+
+    static class Write {
+        final ByteBuffer record;
+        final LongConsumer segment;//получает номер сегмента записи до сброса на диск
+        final CompletableFuture<Void> done = new CompletableFuture<> ();
+
+        Write (ByteBuffer record, LongConsumer segment){
+            this.record = record;
+            this.segment = segment;
+        }
+    }
+
+    final VtbPendingIndex index = new VtbPendingIndex ();
+    final BlockingQueue<Write> queue = new LinkedBlockingQueue<> ();
+    final NavigableSet<Long> segments = new ConcurrentSkipListSet<> ();
+    private volatile long segment;//текущий сегмент
+    private FileChannel channel;//только для нити журнала
+    private volatile boolean running;
+    private Thread writer;
+    private ScheduledExecutorService compactor;
+
+    @Override
+    public void afterPropertiesSet () throws IOException {
+        Path dir = Path.of (directory);
+        Files.createDirectories (dir);
+        long last = replay (dir);
+
+        open (last + 1);
+        running = true;
+        writer = new Thread (this::write, "VtbRequestJournal-writer");
+        writer.setDaemon (true);
+        writer.start ();
+        compactor = Executors.newSingleThreadScheduledExecutor (r -> {
+            Thread t = new Thread (r, "VtbRequestJournal-compactor");
+            t.setDaemon (true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay (this::compact, compactPeriod, compactPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy () throws Exception {
+        compactor.shutdownNow ();
+        running = false;
+        writer.join ();
+        channel.close ();
+    }
+
+    /**
+     * Метод сохраняет полученный запрос
+     * @param id идентификатор запроса
+     * @return false, если запрос уже сохранён и не завершён, либо недавно завершён (повторное получение)
+     * @throws IOException при ошибке записи. Запрос остаётся в индексе незавершённым: его запись могла попасть
+     * на диск, поэтому он будет обработан при восстановлении, как и после перезапуска
+     */
+    public boolean request (RequestID id) throws IOException {
+        Pending p = new Pending (id, System.currentTimeMillis ());
+        Write w;
+
+        if (index.add (p) == false)
+            return false;
+        synchronized (p) {
+            w = append (request (p), s -> p.requestSegment = s);
+        }
+        await (w);
+        return true;
+    }
+
+    /**
+     * Сохранённый ответ на незавершённый запрос
+     * @param key идентификатор запроса RequestID.getid ()
+     * @return ответ, либо null
+     */
+    public byte[] response (String key){
+        Pending p = index.get (key);
+        return (p != null)?p.response:null;
+    }
+
+    /**
+     * Метод сохраняет ответ на запрос
+     * @param key идентификатор запроса RequestID.getid ()
+     * @param response ответ
+     * @throws IOException при ошибке записи
+     */
+    public void respond (String key, byte[] response) throws IOException {
+        Pending p = index.get (key);
+        Write w;
+
+        if (p == null)
+            return;
+        synchronized (p) {
+            p.response = response;
+            p.responded = System.currentTimeMillis ();
+            w = append (response (p), s -> p.responseSegment = s);
+        }
+        index.responded (p);
+        await (w);
+    }
+
+    /**
+     * Метод отмечает запрос завершённым (ответ отправлен)
+     * @param key идентификатор запроса RequestID.getid ()
+     * @throws IOException при ошибке записи, после перезапуска ответ может быть отправлен повторно
+     */
+    public void complete (String key) throws IOException {
+        Pending p = index.get (key);
+        Write w;
+
+        if (p == null)
+            return;
+        synchronized (p) {//после возможной копии записей запроса при уплотнении
+            VtbPendingIndex.Completed c = index.complete (key, System.currentTimeMillis ());
+            if (c == null)
+                return;
+            w = append (done (key, c.time), s -> c.segment = s);
+        }
+        await (w);
+    }
+
+    /**
+     * Признак недавнего завершения запроса
+     * @param key идентификатор запроса RequestID.getid ()
+     */
+    public boolean isCompleted (String key){
+        return index.isCompleted (key);
+    }
+
+    /**
+     * Незавершённые запросы
+     */
+    public Collection<Pending> pending (){
+        return index.pending ();
+    }
+
+    /**
+     * Незавершённые запросы, которые пора восстановить (см. VtbPendingIndex.due)
+     */
+    public List<Pending> due (){
+        return index.due (System.currentTimeMillis ());
+    }
+
+    static ByteBuffer record (byte type, long time, int size){
+        ByteBuffer b = ByteBuffer.allocate (HEADER + size + TRAILER);
+        return b.putInt (1 + 8 + size).put (type).putLong (time);
+    }
+
+    static ByteBuffer seal (ByteBuffer b){
+        CRC32 crc = new CRC32 ();
+        crc.update (b.array (), 4, b.position () - 4);
+        return b.putInt ((int) crc.getValue ()).flip ();
+    }
+
+    static ByteBuffer request (Pending p){
+        return seal (p.id.to (record (REQUEST, p.requested, p.id.getBinarySize ())));
+    }
+
+    static ByteBuffer response (Pending p){
+        byte key[] = p.key.getBytes (StandardCharsets.UTF_8), response[] = p.response;
+        return seal (record (RESPONSE, p.responded, 2 + key.length + 4 + response.length)
+                .putShort ((short) key.length).put (key).putInt (response.length).put (response));
+    }
+
+    static ByteBuffer done (String key, long time){
+        byte bytes[] = key.getBytes (StandardCharsets.UTF_8);
+        return seal (record (DONE, time, 2 + bytes.length).putShort ((short) bytes.length).put (bytes));
+    }
+
+    static String key (ByteBuffer b){
+        byte bytes[] = new byte[b.getShort ()];
+        b.get (bytes);
+        return new String (bytes, StandardCharsets.UTF_8);
+    }
+
+    Write append (ByteBuffer record, LongConsumer segment) throws IOException {
+        if (running == false && writer != null)
+            throw new IOException ("journal is closed");
+        Write w = new Write (record, segment);
+        queue.add (w);
+        return w;
+    }
+
+    static void await (Write w) throws IOException {
+        try {
+            w.done.get ();
+        } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+            throw new IOException (e);
+        } catch (ExecutionException e) {
+            throw (e.getCause () instanceof IOException)?(IOException) e.getCause ():new IOException (e.getCause ());
+        }
+    }
+
+    /**
+     * Нить журнала: пишет все накопившиеся записи и сбрасывает их на диск одним force.
+     * При ошибке записи сегмент обрезается до начала несброшенных записей группы (см. rollback), чтобы за
+     * недописанной записью не оказались последующие: восстановление остановилось бы на ней и потеряло их
+     */
+    void write (){
+        List<Write> batch = new ArrayList<> ();
+
+        while (running || queue.isEmpty () == false) {
+            int done = 0;//записи группы до done уже сброшены на диск и завершены
+            long mark = -1;//начало несброшенных записей в текущем сегменте
+            try {
+                Write w = queue.poll (100, TimeUnit.MILLISECONDS);
+                if (w == null)
+                    continue;
+                batch.add (w);
+                queue.drainTo (batch);
+                mark = channel.position ();
+                for (int i = 0; i < batch.size (); i++) {
+                    Write x = batch.get (i);
+                    if (channel.position () > 0 && channel.position () + x.record.remaining () > segmentSize) {
+                        channel.force (false);//записи группы в заполненном сегменте завершаются до перехода
+                        batch.subList (done, i).forEach (y -> y.done.complete (null));
+                        done = i;
+                        mark = -1;
+                        open (segment + 1);
+                        mark = 0;
+                    }
+                    x.segment.accept (segment);
+                    while (x.record.hasRemaining ())
+                        channel.write (x.record);
+                }
+                channel.force (false);
+                batch.subList (done, batch.size ()).forEach (x -> x.done.complete (null));
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                rollback (mark);
+                batch.subList (done, batch.size ()).forEach (x -> x.done.completeExceptionally (e));
+            }
+            batch.clear ();
+        }
+    }
+
+    /**
+     * Метод удаляет несброшенные записи после ошибки записи: сегмент обрезается до mark, а если это невозможно,
+     * начинается новый сегмент, и в повреждённый сегмент больше ничего не пишется
+     * @param mark начало несброшенных записей в текущем сегменте, -1 - неизвестно
+     */
+    void rollback (long mark){
+        try {
+            if (mark < 0)
+                throw new IOException ("unknown position");
+            channel.truncate (mark);
+            channel.position (mark);
+            channel.force (false);
+        } catch (IOException e) {
+            try {
+                open (segment + 1);
+            } catch (IOException x) {//повторим при следующей записи
+                System.out.println ("VtbRequestJournal-> cannot open segment: " + x);
+            }
+        }
+    }
+
+    Path path (long n){
+        return Path.of (directory, String.format ("journal-%016d.log", n));
+    }
+
+    /**
+     * Новый текущий сегмент, предыдущий закрывается
+     */
+    void open (long n) throws IOException {
+        if (channel != null) {
+            try {
+                channel.close ();
+            } catch (IOException e) {//сегмент мог быть закрыт после ошибки
+            }
+            channel = null;
+        }
+        channel = FileChannel.open (path (n), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        segments.add (n);
+        segment = n;
+    }
+
+    /**
+     * Восстановление индекса из сегментов. Копии записей запроса при уплотнении всегда пишутся раньше его признака
+     * завершения, поэтому запрос после признака завершения - новый запрос с тем же идентификатором
+     * @return номер последнего сегмента, 0 - сегментов нет
+     */
+    long replay (Path dir) throws IOException {
+        Map<String,Pending> pending = new LinkedHashMap<> ();
+        long last = 0;
+        File files[] = dir.toFile ().listFiles ((d, name) -> name.startsWith ("journal-") && name.endsWith (".log"));
+
+        if (files == null)
+            return last;
+        index.expire (System.currentTimeMillis ());
+        Arrays.sort (files);
+        for (File f : files) {
+            long n = Long.parseLong (f.getName ().substring ("journal-".length (), f.getName ().length () - ".log".length ()));
+            ByteBuffer b = ByteBuffer.wrap (Files.readAllBytes (f.toPath ()));
+
+            segments.add (n);
+            last = Math.max (last, n);
+            while (b.hasRemaining ()) {
+                int start = b.position (), length = length (b, start);
+                if (length < 0) {//запись не дописана или повреждена, ищем следующую целую запись
+                    int next = start + 1;
+                    while (next <= b.limit () - HEADER - TRAILER && length (b, next) < 0)
+                        next++;
+                    if (next > b.limit () - HEADER - TRAILER) {
+                        System.out.println ("VtbRequestJournal-> " + f.getName () + ": torn tail at " + start
+                                + ", " + (b.limit () - start) + " bytes dropped");
+                        break;
+                    }
+                    System.out.println ("VtbRequestJournal-> " + f.getName () + ": corrupted record at " + start
+                            + ", " + (next - start) + " bytes skipped");
+                    b.position (next);
+                    continue;
+                }
+                b.position (start + 4);
+                byte type = b.get ();
+                long time = b.getLong ();
+                ByteBuffer data = b.slice (b.position (), length - 1 - 8);
+                b.position (start + 4 + length + TRAILER);
+
+                if (type == REQUEST) {
+                    RequestID id = RequestID.from (data);
+                    if (id != null) {
+                        Pending p = pending.computeIfAbsent (id.getid (), k -> new Pending (id, time));
+                        p.requestSegment = n;
+                    }
+                } else if (type == RESPONSE) {
+                    Pending p = pending.get (key (data));
+                    if (p != null) {
+                        p.response = new byte[data.getInt ()];
+                        data.get (p.response);
+                        p.responded = time;
+                        p.responseSegment = n;
+                    }
+                } else if (type == DONE) {
+                    String key = key (data);
+                    pending.remove (key);
+                    if (time + index.window >= System.currentTimeMillis ())
+                        index.completed (key, time).segment = n;
+                }
+            }
+        }
+        for (Pending p : pending.values ()) {
+            index.add (p);
+            if (p.response != null)
+                index.responded (p);
+        }
+        return last;
+    }
+
+    /**
+     * Длина записи с позиции start, если запись целая: длина в границах буфера, CRC совпадает, тип известен
+     * @return длина записи без длины и CRC, -1 - записи нет
+     */
+    static int length (ByteBuffer b, int start){
+        if (start < 0 || b.limit () - start < HEADER + TRAILER)
+            return -1;
+        int length = b.getInt (start);
+        if (length < 1 + 8 || length > b.limit () - start - 4 - TRAILER)
+            return -1;
+        byte type = b.get (start + 4);
+        if (type != REQUEST && type != RESPONSE && type != DONE)
+            return -1;
+        CRC32 crc = new CRC32 ();
+        crc.update (b.array (), b.arrayOffset () + start + 4, length);
+        return ((int) crc.getValue () == b.getInt (start + 4 + length))?length:-1;
+    }
+
+    /**
+     * Уплотнение: незавершённые записи и признаки завершения из окна индекса самого старого сегмента копируются
+     * в текущий, после чего сегмент удаляется. Сегменты удаляются строго по порядку, поэтому признак завершения
+     * никогда не удаляется раньше копий его запроса
+     */
+    void compact (){
+        long current = segment;//сегменты, начатые копиями этого цикла, уплотняются в следующем цикле
+
+        try {
+            for (Long oldest = segments.first (); oldest < current; oldest = segments.first ()) {
+                final long n = oldest;
+                for (Pending p : index.pending.values ()) {
+                    if (p.requestSegment != n && p.responseSegment != n)
+                        continue;
+                    Write request, response = null;
+                    synchronized (p) {
+                        if (index.get (p.key) != p)
+                            continue;//запрос уже завершён
+                        request = append (request (p), s -> p.requestSegment = s);
+                        if (p.response != null)
+                            response = append (response (p), s -> p.responseSegment = s);
+                    }
+                    await (request);
+                    if (response != null)
+                        await (response);
+                }
+                index.expire (System.currentTimeMillis ());
+                for (VtbPendingIndex.Completed c : index.completed.values ()) {
+                    if (c.segment == n)
+                        await (append (done (c.key, c.time), s -> c.segment = s));
+                }
+                Files.deleteIfExists (path (n));
+                segments.remove (n);
+            }
+        } catch (IOException | NoSuchElementException e) {//повторим в следующем цикле
+        }
+    }
+}
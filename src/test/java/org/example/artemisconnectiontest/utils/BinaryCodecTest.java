@@ -0,0 +1,108 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryCodecTest {
+    static final long[] NUMBERS = {0, 1, 127, 128, 16383, 16384, 1653229133433L, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+    static final String[] STRINGS = {null, "", "queue://DC.Client2.Reply", "Ответ брокера", "emoji 😀 end",
+            "x".repeat (300)};
+
+    @Test
+    void varLongRoundTrip (){
+        for (long v : NUMBERS) {
+            ByteBuffer b = ByteBuffer.allocate (16);
+            BinaryCodec.putVarLong (b, v);
+            assertEquals (BinaryCodec.sizeOfVarLong (v), b.position (), "size of " + v);
+            b.flip ();
+            assertEquals (v, BinaryCodec.getVarLong (b));
+            assertEquals (0, b.remaining ());
+        }
+    }
+
+    @Test
+    void stringRoundTrip (){
+        for (String s : STRINGS) {
+            ByteBuffer b = ByteBuffer.allocate (1024);
+            BinaryCodec.putString (b, s);
+            assertEquals (BinaryCodec.sizeOfString (s), b.position (), "size of " + s);
+            b.flip ();
+            assertEquals (s, BinaryCodec.getString (b));
+            assertEquals (0, b.remaining ());
+        }
+    }
+
+    @Test
+    void stringWithPrefixRoundTrip (){
+        String s = "queue://Client1.Response";
+        ByteBuffer b = ByteBuffer.allocate (64);
+        BinaryCodec.putString (b, s, "queue://".length ());
+        assertEquals (BinaryCodec.sizeOfString (s, "queue://".length ()), b.position ());
+        b.flip ();
+        assertEquals (s, BinaryCodec.getString (b, "queue://"));
+    }
+
+    @Test
+    void directBufferRoundTrip (){
+        ByteBuffer b = ByteBuffer.allocateDirect (64);
+        BinaryCodec.putString (b, "Ответ");
+        b.flip ();
+        assertEquals ("Ответ", BinaryCodec.getString (b));
+    }
+
+    @Test
+    void truncatedString (){
+        ByteBuffer b = ByteBuffer.allocate (64);
+        BinaryCodec.putString (b, "abcdef");
+        for (int size = 1; size < b.position (); size++) {
+            ByteBuffer t = ByteBuffer.wrap (b.array (), 0, size);
+            assertThrows (IllegalArgumentException.class, () -> BinaryCodec.getString (t));
+        }
+        assertThrows (BufferUnderflowException.class, () -> BinaryCodec.getString (ByteBuffer.allocate (0)));
+    }
+
+    @Test
+    void truncatedVarLong (){
+        ByteBuffer b = ByteBuffer.allocate (16);
+        BinaryCodec.putVarLong (b, Long.MAX_VALUE);
+        ByteBuffer t = ByteBuffer.wrap (b.array (), 0, b.position () - 1);
+        assertThrows (BufferUnderflowException.class, () -> BinaryCodec.getVarLong (t));
+    }
+
+    @Test
+    void corruptLengths (){
+        //длина больше остатка буфера
+        ByteBuffer b = ByteBuffer.allocate (16);
+        BinaryCodec.putVarLong (b, 1000);
+        b.put (new byte[4]).flip ();
+        assertThrows (IllegalArgumentException.class, () -> BinaryCodec.getString (b.duplicate ()));
+        assertThrows (IllegalArgumentException.class, () -> BinaryCodec.getLength (b.duplicate ()));
+        //отрицательная длина
+        ByteBuffer n = ByteBuffer.allocate (16);
+        BinaryCodec.putVarLong (n, -5);
+        n.flip ();
+        assertThrows (IllegalArgumentException.class, () -> BinaryCodec.getString (n.duplicate ()));
+        assertThrows (IllegalArgumentException.class, () -> BinaryCodec.getLength (n.duplicate ()));
+        //varint длиннее 10 байт
+        ByteBuffer l = ByteBuffer.allocate (16);
+        for (int i = 0; i < 11; i++)
+            l.put ((byte) 0x80);
+        l.put ((byte) 1).flip ();
+        assertThrows (IllegalArgumentException.class, () -> BinaryCodec.getVarLong (l));
+    }
+
+    @Test
+    void lengthWithinBuffer (){
+        ByteBuffer b = ByteBuffer.allocate (8);
+        BinaryCodec.putVarLong (b, 3);
+        b.put (new byte[3]).flip ();
+        assertEquals (3, BinaryCodec.getLength (b));
+        assertNull (BinaryCodec.getString (ByteBuffer.wrap (new byte[]{0})));
+    }
+}
@@ -0,0 +1,74 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.apache.activemq.artemis.api.core.TransportConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Планирование консюмеров по оценкам одного опроса (PlatzCard.choose и PlatzCard.reserve)
+ */
+class PlatzCardReserveTest {
+
+    static List<PlatzCard.Probe> empty (int m){
+        List<PlatzCard.Probe> probes = new ArrayList<> ();
+        for (int i = 0; i < m; i++) {
+            PlatzCard.Probe p = new PlatzCard.Probe ((TransportConfiguration) null);
+            p.counted = true;
+            p.limit = Integer.MAX_VALUE;//пустая очередь без ограничения консюмеров
+            probes.add (p);
+        }
+        return probes;
+    }
+
+    static void plan (List<PlatzCard.Probe> probes, int n, PlatzCard.HALevel HA){
+        for (int i = 0; i < n; i++) {
+            PlatzCard.Probe chosen = PlatzCard.choose (probes, true, false, 0, 0);
+            assertNotNull (chosen);
+            PlatzCard.reserve (chosen, true, HA, 0);
+        }
+    }
+
+    static void assertSpread (List<PlatzCard.Probe> probes, int n){
+        int m = probes.size (), total = 0;
+        for (PlatzCard.Probe p : probes) {
+            assertTrue (p.planned == n / m || p.planned == (n + m - 1) / m, "planned " + p.planned);
+            assertEquals (p.planned, p.consumers);
+            total += p.planned;
+        }
+        assertEquals (n, total);
+    }
+
+    @Test
+    void spreadsOverUnboundedBrokers (){
+        List<PlatzCard.Probe> probes = empty (4);
+        plan (probes, 10, PlatzCard.HALevel.BOOS);
+        assertSpread (probes, 10);
+    }
+
+    @Test
+    void spreadsOverUnboundedBrokersWithLatency (){
+        List<PlatzCard.Probe> probes = empty (3);
+        for (int i = 0; i < probes.size (); i++)
+            probes.get (i).rtt = 1 + i;//ближайший брокер не забирает все подключения
+        plan (probes, 7, PlatzCard.HALevel.MC);
+        assertSpread (probes, 7);
+        assertEquals (3, probes.get (0).planned);
+    }
+
+    @Test
+    void spreadsOverPartnerBusyBrokers (){
+        List<PlatzCard.Probe> probes = empty (2);
+        for (PlatzCard.Probe p : probes) {
+            p.limit = Integer.MAX_VALUE / 2;//BC: на парном брокере есть консюмеры
+            p.b_consumers = true;
+        }
+        plan (probes, 6, PlatzCard.HALevel.BC);
+        assertSpread (probes, 6);
+    }
+}
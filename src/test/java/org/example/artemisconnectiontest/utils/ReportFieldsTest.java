@@ -0,0 +1,108 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.junit.jupiter.api.Test;
+
+import javax.jms.JMSException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Двоичный формат ReportFields
+ */
+class ReportFieldsTest {
+
+    static ReportFields sample (Object correlationID) throws JMSException {
+        ReportFields r = new ReportFields ("DC.Client2.Reply", correlationID, true);
+        r.setReportAddress ("DC.Reports");
+        r.setReferer (true);
+        r.VTBReport = "delivered,expired";
+        r.VTBBroker = "localhost/127.0.0.1:61617";
+        r.originalId = "ID:e034cd67-d9d9-11ec-9f5b-f8e43b68135b";
+        r.originalAddress = "DC.Service";
+        r.originalQueue = "DC.Service::Очередь";
+        r.originalExpiryTime = 1653229133433L;
+        r.originalTimestamp = -1;
+        return r;
+    }
+
+    static ByteBuffer write (ReportFields r){
+        ByteBuffer b = ByteBuffer.allocate (r.getBinarySize ());
+        r.to (b);
+        assertEquals (0, b.remaining (), "getBinarySize");
+        return b.flip ();
+    }
+
+    static void assertSame (ReportFields expected, ReportFields actual){
+        assertNotNull (actual);
+        assertEquals (expected.flags (), actual.flags ());
+        assertEquals (expected.VTBAddress, actual.VTBAddress);
+        assertEquals (expected.VTBReport, actual.VTBReport);
+        assertEquals (expected.JMSReplyTo, actual.JMSReplyTo);
+        if (expected.JMSCorrelationID instanceof byte[])
+            assertArrayEquals ((byte[]) expected.JMSCorrelationID, (byte[]) actual.JMSCorrelationID);
+        else
+            assertEquals (expected.JMSCorrelationID, actual.JMSCorrelationID);
+        assertEquals (expected.VTBBroker, actual.VTBBroker);
+        assertEquals (expected.originalId, actual.originalId);
+        assertEquals (expected.originalAddress, actual.originalAddress);
+        assertEquals (expected.originalQueue, actual.originalQueue);
+        assertEquals (expected.originalExpiryTime, actual.originalExpiryTime);
+        assertEquals (expected.originalTimestamp, actual.originalTimestamp);
+    }
+
+    @Test
+    void roundTrip () throws JMSException {
+        for (Object id : new Object[]{null, "Correlation ID-1", 42L, Long.MIN_VALUE, new byte[]{1, 2, 3}, new byte[0]}) {
+            ReportFields r = sample (id);
+            ByteBuffer b = write (r);
+            assertSame (r, ReportFields.from (b));
+            assertEquals (0, b.remaining ());
+        }
+        ReportFields empty = new ReportFields ();
+        assertSame (empty, ReportFields.from (write (empty)));
+    }
+
+    @Test
+    void unsupportedCorrelationType () throws JMSException {
+        ReportFields r = sample (3.14);
+        assertThrows (IllegalArgumentException.class, () -> r.to (ByteBuffer.allocate (1024)));
+    }
+
+    @Test
+    void truncated () throws JMSException {
+        for (Object id : new Object[]{"Correlation ID-1", 42L, new byte[]{1, 2, 3}}) {
+            ByteBuffer b = write (sample (id));
+            for (int size = 0; size < b.limit (); size++)
+                assertNull (ReportFields.from (ByteBuffer.wrap (b.array (), 0, size)), "truncated to " + size);
+        }
+    }
+
+    @Test
+    void corruptBytesLength () throws JMSException {
+        ByteBuffer b = write (sample (new byte[]{1, 2, 3}));
+        int at = 3 + BinaryCodec.sizeOfString ("queue://DC.Reports") + BinaryCodec.sizeOfString ("delivered,expired")
+                + BinaryCodec.sizeOfString ("queue://DC.Client2.Reply");
+        assertEquals (3, b.get (at));
+        b.put (at, (byte) 0x7F);//длина больше остатка буфера
+        assertNull (ReportFields.from (b.duplicate ()));
+        ByteBuffer n = ByteBuffer.allocate (b.limit () + 16);
+        n.put (b.array (), 0, at);
+        BinaryCodec.putVarLong (n, -1);//отрицательная длина
+        n.put (b.array (), at + 1, b.limit () - at - 1).flip ();
+        assertNull (ReportFields.from (n));
+    }
+
+    @Test
+    void corruptHeader () throws JMSException {
+        ByteBuffer b = write (sample ("Correlation ID-1"));
+        b.put (0, (byte) 99);//неизвестная версия
+        assertNull (ReportFields.from (b.duplicate ()));
+        b.put (0, ReportFields.VERSION).put (2, (byte) 9);//неизвестный тип JMSCorrelationID
+        assertNull (ReportFields.from (b.duplicate ()));
+    }
+}
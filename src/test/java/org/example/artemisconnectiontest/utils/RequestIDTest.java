@@ -0,0 +1,136 @@
+package org.example.artemisconnectiontest.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RequestIDTest {
+    static final RequestID[] SAMPLES = {
+            new RequestID ("ID:e034cd67-d9d9-11ec-9f5b-f8e43b68135b", "queue://DC.Client2.Reply", 1653229133433L,
+                    null, null, "ID:dfe65f41-d9d9-11ec-9f5b-f8e43b68135b"),
+            new RequestID ("ID:16a2bbde-d01f-11ec-b40e-f8e43b68135b", "queue://Client1.Response::q.1", 0,
+                    "svc.user-1", "localhost/127.0.0.1:61617", "any tex.,, -"),
+            new RequestID ("ID:16a2bbde", "temp-queue://a5f3c1e2-8d4b", Long.MAX_VALUE, "", "", ""),
+            new RequestID ("16a2bbde", "queue://Ответы", -1, "Пользователь", null, null),
+    };
+
+    static ByteBuffer write (RequestID id){
+        ByteBuffer b = ByteBuffer.allocate (id.getBinarySize ());
+        id.to (b);
+        assertEquals (0, b.remaining (), "getBinarySize");
+        return b.flip ();
+    }
+
+    static void assertSame (RequestID expected, RequestID actual){
+        assertNotNull (actual);
+        assertEquals (expected.id, actual.id);
+        assertEquals (expected.queue, actual.queue);
+        assertEquals (expected.expiration, actual.expiration);
+        assertEquals (expected.user, actual.user);
+        assertEquals (expected.broker, actual.broker);
+        assertEquals (expected.correlation, actual.correlation);
+    }
+
+    //строки, которые разбирает и parse, и прежний разбор parseRegex
+    static final String[] VALID = {
+            "RequestID{id=ID:e034cd67-d9d9-11ec-9f5b-f8e43b68135b,queue=queue://DC.Client2.Reply,expiration=1653229133433,"
+                    + "user=,broker=,correlation=\"ID:dfe65f41-d9d9-11ec-9f5b-f8e43b68135b\"}",
+            "RequestID{id=ID:16a2bbde-d01f-11ec-b40e-f8e43b68135b,queue=queue://Client1.Response,expiration=0,"
+                    + "user=svc.user-1,broker=localhost/127.0.0.1:61617,correlation=\"any tex.,, -\"}",
+            "RequestID{id=ID:16a2bbde:1:2,queue=queue://DC.Client2.Reply::DC.Client2.Reply.q-1,expiration=7,"
+                    + "user=,broker=host-1.dc:61616,correlation=\"\"}",
+            "RequestID{id=ID:0,queue=queue://q,expiration=12345678901234,user=u_1,broker=b,"
+                    + "correlation=\"a+b=c:d/e f\tg\"}",
+    };
+    //строки, которые не разбирает ни parse, ни parseRegex
+    static final String[] INVALID = {
+            "",
+            "RequestID{}",
+            "RequestID{id=16a2bbde,queue=queue://q,expiration=0,user=,broker=,correlation=\"\"}",
+            "RequestID{id=ID:16A2BBDE,queue=queue://q,expiration=0,user=,broker=,correlation=\"\"}",
+            "RequestID{id=ID:,queue=queue://q,expiration=0,user=,broker=,correlation=\"\"}",
+            "RequestID{id=ID:1,queue=topic://q,expiration=0,user=,broker=,correlation=\"\"}",
+            "RequestID{id=ID:1,queue=queue://,expiration=0,user=,broker=,correlation=\"\"}",
+            "RequestID{id=ID:1,queue=queue://q,expiration=0,user=a b,broker=,correlation=\"\"}",
+            "RequestID{id=ID:1,queue=queue://q,expiration=0,user=,broker=a b,correlation=\"\"}",
+            "RequestID{id=ID:1,queue=queue://q,expiration=0,user=,broker=,correlation=\"a;b\"}",
+            "RequestID{id=ID:1,queue=queue://q,expiration=0,user=,broker=,correlation=\"\\\"}",
+            "RequestID{id=ID:1,queue=queue://q,expiration=0,user=,broker=,correlation=\"",
+            "RequestID{id=ID:1,queue=queue://q,expiration=0,user=,broker=,correlation=",
+    };
+
+    static void assertEquivalent (String s){
+        RequestID expected = RequestID.parseRegex (s), actual = RequestID.parse (s);
+        assertEquals (String.valueOf (expected), String.valueOf (actual), s);
+    }
+
+    @Test
+    void parseMatchesRegexOnValid (){
+        for (String s : VALID) {
+            assertNotNull (RequestID.parse (s), s);
+            assertEquivalent (s);
+            assertEquals (s, RequestID.parse (s).toString ());
+        }
+    }
+
+    @Test
+    void parseMatchesRegexOnInvalid (){
+        for (String s : INVALID) {
+            assertNull (RequestID.parseRegex (s), s);
+            assertNull (RequestID.parse (s), s);
+        }
+    }
+
+    @Test
+    void parseMatchesRegexOnTruncated (){
+        for (String s : VALID)
+            for (int end = 0; end < s.length (); end++)
+                assertEquivalent (s.substring (0, end));
+    }
+
+    @Test
+    void parseToStringRoundTrip (){
+        for (int i = 0; i < 3; i++) {//в SAMPLES[3] символы вне формата строки
+            RequestID id = RequestID.parse (SAMPLES[i].toString ());
+            assertNotNull (id, SAMPLES[i].toString ());
+            assertEquals (SAMPLES[i].toString (), id.toString ());
+        }
+        //временные очереди разбирает только parse
+        assertEquals ("temp-queue://a5f3c1e2-8d4b", RequestID.parse (SAMPLES[2].toString ()).queue);
+        assertNull (RequestID.parseRegex (SAMPLES[2].toString ()));
+        assertNull (RequestID.parse (SAMPLES[3].toString ()));
+    }
+
+    @Test
+    void binaryRoundTrip (){
+        for (RequestID id : SAMPLES) {
+            ByteBuffer b = write (id);
+            assertSame (id, RequestID.from (b));
+            assertEquals (0, b.remaining ());
+        }
+    }
+
+    @Test
+    void binaryTruncated (){
+        for (RequestID id : SAMPLES) {
+            ByteBuffer b = write (id);
+            for (int size = 0; size < b.limit (); size++)
+                assertNull (RequestID.from (ByteBuffer.wrap (b.array (), 0, size)), id + " truncated to " + size);
+        }
+    }
+
+    @Test
+    void binaryCorrupt (){
+        ByteBuffer b = write (SAMPLES[0]);
+        b.put (0, (byte) 99);//неизвестная версия
+        assertNull (RequestID.from (b.duplicate ()));
+        b.put (0, RequestID.VERSION).put (2, (byte) 0x7F);//длина id больше остатка буфера
+        assertNull (RequestID.from (b.duplicate ()));
+        b.put (2, (byte) 0);//id = null
+        assertNull (RequestID.from (b.duplicate ()));
+    }
+}
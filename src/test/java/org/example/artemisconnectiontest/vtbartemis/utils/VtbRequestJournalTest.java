@@ -0,0 +1,177 @@
+package org.example.artemisconnectiontest.vtbartemis.utils;
+
+import org.example.artemisconnectiontest.utils.RequestID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Восстановление журнала после недописанных и повреждённых записей и после уплотнения
+ */
+class VtbRequestJournalTest {
+    @TempDir
+    Path dir;
+
+    static RequestID id (int n){
+        return RequestID.parse ("RequestID{id=ID:" + n + "-d9d9-11ec-9f5b-f8e43b68135b,queue=queue://DC.Client2.Reply,"
+                + "expiration=0,user=,broker=,correlation=\"\"}");
+    }
+
+    static String key (int n){
+        return id (n).getid ();
+    }
+
+    VtbRequestJournal journal (long segmentSize) throws IOException {
+        VtbRequestJournal j = new VtbRequestJournal ();
+        j.directory = dir.toString ();
+        j.segmentSize = segmentSize;
+        j.compactPeriod = 3600000;//уплотнение вызывается тестом
+        j.afterPropertiesSet ();
+        return j;
+    }
+
+    static Set<String> pending (VtbRequestJournal j){
+        return j.pending ().stream ().map (p -> p.key).collect (Collectors.toCollection (TreeSet::new));
+    }
+
+    static Set<String> keys (int... n){
+        Set<String> keys = new TreeSet<> ();
+        for (int i : n)
+            keys.add (key (i));
+        return keys;
+    }
+
+    /**
+     * Сегмент из записей, как их пишет нить журнала
+     */
+    Path segment (long n, ByteBuffer... records) throws IOException {
+        Path p = dir.resolve (String.format ("journal-%016d.log", n));
+        for (ByteBuffer r : records)
+            Files.write (p, r.array (), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return p;
+    }
+
+    static ByteBuffer request (int n){
+        return VtbRequestJournal.request (new VtbRequestJournal.Pending (id (n), System.currentTimeMillis ()));
+    }
+
+    static ByteBuffer response (int n, String text){
+        VtbRequestJournal.Pending p = new VtbRequestJournal.Pending (id (n), System.currentTimeMillis ());
+        p.response = text.getBytes (StandardCharsets.UTF_8);
+        p.responded = System.currentTimeMillis ();
+        return VtbRequestJournal.response (p);
+    }
+
+    static ByteBuffer done (int n){
+        return VtbRequestJournal.done (key (n), System.currentTimeMillis ());
+    }
+
+    static ByteBuffer torn (ByteBuffer record, int size){
+        return ByteBuffer.wrap (Arrays.copyOf (record.array (), size));
+    }
+
+    @Test
+    void replayAfterRestart () throws Exception {
+        VtbRequestJournal j = journal (1 << 20);
+        for (int i = 1; i <= 3; i++)
+            assertTrue (j.request (id (i)));
+        assertFalse (j.request (id (1)));//повторное получение
+        j.respond (key (2), "ответ".getBytes (StandardCharsets.UTF_8));
+        j.complete (key (3));
+        j.destroy ();
+
+        VtbRequestJournal r = journal (1 << 20);
+        assertEquals (keys (1, 2), pending (r));
+        assertNull (r.response (key (1)));
+        assertArrayEquals ("ответ".getBytes (StandardCharsets.UTF_8), r.response (key (2)));
+        assertTrue (r.isCompleted (key (3)));
+        assertFalse (r.request (id (3)));//недавно завершён
+        r.destroy ();
+    }
+
+    @Test
+    void replayAfterTornTail () throws Exception {
+        ByteBuffer tail = request (4);
+        for (int size = 1; size < tail.limit (); size++) {
+            Files.list (dir).forEach (p -> p.toFile ().delete ());
+            segment (1, request (1), request (2), response (2, "ok"), done (1), torn (tail, size));
+
+            VtbRequestJournal r = journal (1 << 20);
+            assertEquals (keys (2), pending (r), "torn to " + size);
+            assertArrayEquals ("ok".getBytes (StandardCharsets.UTF_8), r.response (key (2)));
+            assertTrue (r.isCompleted (key (1)));
+            r.destroy ();
+        }
+    }
+
+    @Test
+    void replayAfterTornMiddle () throws Exception {
+        ByteBuffer middle = response (1, "потерянный ответ");
+        for (int size : new int[]{1, 4, VtbRequestJournal.HEADER, middle.limit () / 2, middle.limit () - 1}) {
+            Files.list (dir).forEach (p -> p.toFile ().delete ());
+            segment (1, request (1), request (2), torn (middle, size), request (3), response (3, "ok"), done (2));
+            segment (2, request (5));
+
+            VtbRequestJournal r = journal (1 << 20);
+            assertEquals (keys (1, 3, 5), pending (r), "torn to " + size);
+            assertNull (r.response (key (1)));
+            assertArrayEquals ("ok".getBytes (StandardCharsets.UTF_8), r.response (key (3)));
+            assertTrue (r.isCompleted (key (2)));
+            r.destroy ();
+        }
+    }
+
+    @Test
+    void replayAfterCorruptedRecord () throws Exception {
+        ByteBuffer corrupted = request (2);
+        corrupted.put (VtbRequestJournal.HEADER + 2, (byte) (corrupted.get (VtbRequestJournal.HEADER + 2) ^ 1));
+        segment (1, request (1), corrupted, request (3), done (1));
+
+        VtbRequestJournal r = journal (1 << 20);
+        assertEquals (keys (3), pending (r));
+        assertTrue (r.isCompleted (key (1)));
+        r.destroy ();
+    }
+
+    @Test
+    void replayAfterCompaction () throws Exception {
+        VtbRequestJournal j = journal (256);//несколько записей в сегменте
+        for (int i = 1; i <= 10; i++)
+            j.request (id (i));
+        for (int i = 1; i <= 10; i += 3)
+            j.respond (key (i), ("ответ " + i).getBytes (StandardCharsets.UTF_8));
+        for (int i = 2; i <= 10; i += 2)
+            j.complete (key (i));
+        long before = j.segments.first ();
+        assertTrue (j.segments.size () > 2);
+        j.compact ();
+        assertTrue (j.segments.first () > before);
+        assertFalse (Files.exists (j.path (before)));
+        j.destroy ();
+
+        VtbRequestJournal r = journal (256);
+        assertEquals (keys (1, 3, 5, 7, 9), pending (r));
+        for (int i = 1; i <= 10; i += 3)
+            if (i % 2 == 1)
+                assertArrayEquals (("ответ " + i).getBytes (StandardCharsets.UTF_8), r.response (key (i)));
+        for (int i = 2; i <= 10; i += 2)
+            assertTrue (r.isCompleted (key (i)), "completed " + i);
+        r.destroy ();
+    }
+}